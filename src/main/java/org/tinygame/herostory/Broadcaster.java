@@ -1,14 +1,38 @@
 package org.tinygame.herostory;
 
+import com.google.protobuf.GeneratedMessageV3;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.GlobalEventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tinygame.herostory.metrics.MsgMetrics;
+import org.tinygame.herostory.util.ConfigUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * 广播员
  */
 public final class Broadcaster {
+    /**
+     * 日志对象
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(Broadcaster.class);
 
     /**
      * 信道组，注意这里一定要用static,
@@ -16,6 +40,48 @@ public final class Broadcaster {
      */
     private static final ChannelGroup _channelGroup = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
 
+    /**
+     * 事件循环 -> 信道集合字典,
+     * 按事件循环分组广播时使用
+     */
+    private static final Map<EventLoop, Set<Channel>> _eventLoopChMap = new ConcurrentHashMap<>();
+
+    /**
+     * 信道关闭时从分组中移除
+     */
+    private static final ChannelFutureListener _removeOnClose = (f) -> removeFromEventLoop(f.channel());
+
+    /**
+     * 是否按事件循环分组广播,
+     * 开启后每个事件循环只提交一个写任务, 在任务中写出该事件循环上的所有信道并只刷新一次,
+     * 否则由信道组为每个信道各提交一个写任务
+     */
+    private static final boolean GROUP_BY_EVENT_LOOP = "eventLoop".equalsIgnoreCase(
+        ConfigUtil.getString("broadcast.dispatch", "eventLoop")
+    );
+
+    /**
+     * 是否只编码一次,
+     * 开启后广播消息先编码成一个共享的 WebSocket 帧, 再向每个信道写出它的引用副本
+     */
+    private static final boolean ENCODE_ONCE = ConfigUtil.getBoolean("broadcast.encodeOnce", true);
+
+    /**
+     * 当前线程的批量广播列表, 为 null 时立即分发
+     */
+    private static final ThreadLocal<List<Object>> _batchList = new ThreadLocal<>();
+
+    /**
+     * 累计编码字节数
+     */
+    private static final LongAdder _encodedBytes = new LongAdder();
+
+    /**
+     * 累计写入字节数,
+     * 写入时处于活动状态的信道数量 * 帧字节数, 两种分发方式统计口径相同
+     */
+    private static final LongAdder _queuedBytes = new LongAdder();
+
     /**
      * 私有化类默认构造器
      */
@@ -26,8 +92,13 @@ public final class Broadcaster {
      * @param ch
      */
     public static void addChannel(Channel ch) {
-        if (null != ch) {
-            _channelGroup.add(ch);
+        if (null == ch) {
+            return;
+        }
+
+        if (_channelGroup.add(ch)) {
+            _eventLoopChMap.computeIfAbsent(ch.eventLoop(), (k) -> ConcurrentHashMap.newKeySet()).add(ch);
+            ch.closeFuture().addListener(_removeOnClose);
         }
     }
 
@@ -38,6 +109,24 @@ public final class Broadcaster {
     public static void removeChannel(Channel ch) {
         if (null != ch) {
             _channelGroup.remove(ch);
+            removeFromEventLoop(ch);
+        }
+    }
+
+    /**
+     * 从事件循环分组中移除信道
+     *
+     * @param ch
+     */
+    private static void removeFromEventLoop(Channel ch) {
+        if (null == ch) {
+            return;
+        }
+
+        Set<Channel> chSet = _eventLoopChMap.get(ch.eventLoop());
+
+        if (null != chSet) {
+            chSet.remove(ch);
         }
     }
 
@@ -46,9 +135,213 @@ public final class Broadcaster {
      * @param msg
      */
     public static void broadcast(Object msg) {
-        if (null != msg) {
-            _channelGroup.writeAndFlush(msg);
+        if (null == msg) {
+            return;
+        }
+
+        Object outMsg = msg;
+
+        if (msg instanceof GeneratedMessageV3) {
+            // 记录接收者数量, 按当前在线的信道计算
+            MsgMetrics.recordFanOut(GameMsgRecognizer.getMsgCode((GeneratedMessageV3) msg), _channelGroup.size());
+        }
+
+        if (ENCODE_ONCE &&
+            msg instanceof GeneratedMessageV3) {
+            ByteBuf byteBuf;
+
+            try {
+                // 只编码一次
+                byteBuf = GameMsgEncoder.encode(ByteBufAllocator.DEFAULT, (GeneratedMessageV3) msg);
+            } catch (Exception e) {
+                // 记录错误日志
+                LOGGER.error(e.getMessage(), e);
+                return;
+            }
+
+            // 无法识别的消息, 交给各信道的编码器处理
+            if (null != byteBuf) {
+                _encodedBytes.add(byteBuf.readableBytes());
+
+                // 所有信道共享同一块内存,
+                // 每个信道写出帧的引用副本 ( retainedDuplicate )
+                outMsg = new BinaryWebSocketFrame(byteBuf);
+            }
+        }
+
+        List<Object> batchList = _batchList.get();
+
+        if (null != batchList) {
+            // 批量模式, 等到批次结束时一起分发
+            batchList.add(outMsg);
+        } else {
+            dispatch(Collections.singletonList(outMsg));
         }
     }
 
+    /**
+     * 开始批量广播,
+     * 之后当前线程中的广播消息都会暂存起来, 直到调用 endBatch 时一起分发
+     */
+    public static void beginBatch() {
+        if (null == _batchList.get()) {
+            _batchList.set(new ArrayList<>());
+        }
+    }
+
+    /**
+     * 结束批量广播, 分发暂存的所有消息,
+     * 每个信道只刷新一次
+     */
+    public static void endBatch() {
+        List<Object> batchList = _batchList.get();
+
+        if (null == batchList) {
+            return;
+        }
+
+        _batchList.remove();
+
+        if (!batchList.isEmpty()) {
+            dispatch(batchList);
+        }
+    }
+
+    /**
+     * 向所有信道分发消息,
+     * 调用后消息的引用由分发过程负责释放
+     *
+     * @param msgList 消息列表, 可能是已经编码的 WebSocket 帧
+     */
+    private static void dispatch(final List<Object> msgList) {
+        if (!GROUP_BY_EVENT_LOOP) {
+            int activeCount = 0;
+
+            for (Channel ch : _channelGroup) {
+                if (ch.isActive()) {
+                    ++activeCount;
+                }
+            }
+
+            for (Object msg : msgList) {
+                // 信道组会为每个信道写出引用副本, 写完后释放这里的原始引用
+                _queuedBytes.add((long) activeCount * frameSize(msg));
+                _channelGroup.write(msg);
+            }
+
+            _channelGroup.flush();
+            return;
+        }
+
+        long batchSize = 0;
+
+        for (Object msg : msgList) {
+            batchSize += frameSize(msg);
+        }
+
+        final long frameBytes = batchSize;
+
+        try {
+            for (Map.Entry<EventLoop, Set<Channel>> entry : _eventLoopChMap.entrySet()) {
+                final Set<Channel> chSet = entry.getValue();
+
+                if (chSet.isEmpty()) {
+                    continue;
+                }
+
+                // 每个事件循环持有一份引用, 在任务结束时释放
+                for (Object msg : msgList) {
+                    ReferenceCountUtil.retain(msg);
+                }
+
+                // 每个事件循环只提交一个任务
+                try {
+                    entry.getKey().execute(() -> {
+                        try {
+                            int activeCount = 0;
+
+                            for (Channel ch : chSet) {
+                                if (ch.isActive()) {
+                                    for (Object msg : msgList) {
+                                        ch.write(safeDuplicate(msg), ch.voidPromise());
+                                    }
+                                    ++activeCount;
+                                }
+                            }
+
+                            for (Channel ch : chSet) {
+                                ch.flush();
+                            }
+
+                            _queuedBytes.add(activeCount * frameBytes);
+                        } finally {
+                            for (Object msg : msgList) {
+                                ReferenceCountUtil.release(msg);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException ex) {
+                    // 事件循环正在关闭, 任务不会执行, 释放为它持有的引用
+                    for (Object msg : msgList) {
+                        ReferenceCountUtil.release(msg);
+                    }
+
+                    LOGGER.warn("事件循环已关闭, 跳过广播, eventLoop = {}", entry.getKey());
+                }
+            }
+        } finally {
+            for (Object msg : msgList) {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+    }
+
+    /**
+     * 获取已编码帧的字节数
+     *
+     * @param msg 消息对象
+     * @return 已编码帧的字节数, 未编码时为 0
+     */
+    private static int frameSize(Object msg) {
+        if (msg instanceof BinaryWebSocketFrame) {
+            return ((BinaryWebSocketFrame) msg).content().readableBytes();
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * 为每个信道复制消息的引用副本,
+     * 已编码的帧共享同一块内存, 未编码的消息对象不可变, 直接共享
+     *
+     * @param msg 消息对象
+     * @return 引用副本
+     */
+    private static Object safeDuplicate(Object msg) {
+        if (msg instanceof BinaryWebSocketFrame) {
+            return ((BinaryWebSocketFrame) msg).retainedDuplicate();
+        } else {
+            return msg;
+        }
+    }
+
+    /**
+     * 获取累计编码字节数
+     *
+     * @return 累计编码字节数
+     */
+    public static long getEncodedBytes() {
+        return _encodedBytes.sum();
+    }
+
+    /**
+     * 获取累计写入字节数,
+     * 按写入时处于活动状态的信道统计, 不代表已经发送成功.
+     * 与累计编码字节数之比即为只编码一次所节省的倍数
+     *
+     * @return 累计写入字节数
+     */
+    public static long getQueuedBytes() {
+        return _queuedBytes.sum();
+    }
 }
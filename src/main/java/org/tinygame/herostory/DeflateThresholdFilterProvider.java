@@ -0,0 +1,50 @@
+package org.tinygame.herostory;
+
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilter;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilterProvider;
+
+/**
+ * WebSocket 压缩阈值过滤器,
+ * 只压缩内容长度不小于阈值的帧,
+ * 像 UserMoveToResult 这样的小消息直接发送, 不付出压缩的开销
+ */
+public class DeflateThresholdFilterProvider implements WebSocketExtensionFilterProvider {
+    /**
+     * 出站过滤器
+     */
+    private final WebSocketExtensionFilter _encoderFilter;
+
+    /**
+     * 类参数构造器
+     *
+     * @param threshold 压缩阈值 ( 字节 )
+     */
+    public DeflateThresholdFilterProvider(final int threshold) {
+        _encoderFilter = (frame) -> skip(frame, threshold);
+    }
+
+    @Override
+    public WebSocketExtensionFilter encoderFilter() {
+        return _encoderFilter;
+    }
+
+    @Override
+    public WebSocketExtensionFilter decoderFilter() {
+        // 客户端发来的压缩帧必须解压
+        return WebSocketExtensionFilter.NEVER_SKIP;
+    }
+
+    /**
+     * 是否跳过压缩
+     *
+     * @param frame     WebSocket 帧
+     * @param threshold 压缩阈值
+     * @return true = 跳过压缩
+     */
+    private static boolean skip(WebSocketFrame frame, int threshold) {
+        return null == frame ||
+            null == frame.content() ||
+            frame.content().readableBytes() < threshold;
+    }
+}
@@ -0,0 +1,194 @@
+package org.tinygame.herostory;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.Future;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 刷新合并器,
+ * 处理一条消息或主线程一次循环中产生的多次 writeAndFlush 会被合并成一次刷新,
+ * 从而减少系统调用次数.
+ * 积压的写入次数达到上限, 或者距第一次请求刷新超过最大延迟时, 立即刷新
+ *
+ * 注意: 需要放在游戏消息编码器与游戏消息处理器之间,
+ * 这样编码器在刷新时能一次看到本批次的所有消息, 从而合并成信封消息
+ */
+public class FlushConsolidator extends ChannelDuplexHandler {
+    /**
+     * 最大延迟 ( 微秒 ), 0 = 在事件循环当前这批任务执行完后刷新
+     */
+    private final long _maxDelayMicros;
+
+    /**
+     * 最大积压写入次数
+     */
+    private final int _maxPendingWrites;
+
+    /**
+     * 尚未刷新的写入次数
+     */
+    private int _pendingWrites = 0;
+
+    /**
+     * 是否有处理器请求过刷新
+     */
+    private boolean _flushRequested = false;
+
+    /**
+     * 是否正在读取
+     */
+    private boolean _readInProgress = false;
+
+    /**
+     * 已计划的刷新任务
+     */
+    private Future<?> _scheduledFlush = null;
+
+    /**
+     * 信道处理器上下文
+     */
+    private ChannelHandlerContext _ctx = null;
+
+    /**
+     * 刷新任务
+     */
+    private final Runnable _flushTask = () -> {
+        _scheduledFlush = null;
+
+        if (_flushRequested) {
+            flushNow(_ctx);
+        }
+    };
+
+    /**
+     * 类参数构造器
+     *
+     * @param maxDelayMicros   最大延迟 ( 微秒 )
+     * @param maxPendingWrites 最大积压写入次数
+     */
+    public FlushConsolidator(long maxDelayMicros, int maxPendingWrites) {
+        _maxDelayMicros = Math.max(0, maxDelayMicros);
+        _maxPendingWrites = Math.max(1, maxPendingWrites);
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        _ctx = ctx;
+        super.handlerAdded(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        flushIfRequested(ctx);
+        super.handlerRemoved(ctx);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        ++_pendingWrites;
+        ctx.write(msg, promise);
+
+        if (_flushRequested &&
+            _pendingWrites >= _maxPendingWrites) {
+            flushNow(ctx);
+        }
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        _flushRequested = true;
+
+        if (_pendingWrites >= _maxPendingWrites) {
+            // 积压太多, 立即刷新
+            flushNow(ctx);
+            return;
+        }
+
+        if (_readInProgress) {
+            // 读取完成时再刷新
+            return;
+        }
+
+        if (null != _scheduledFlush) {
+            // 已经计划过刷新
+            return;
+        }
+
+        if (_maxDelayMicros <= 0) {
+            _scheduledFlush = ctx.channel().eventLoop().submit(_flushTask);
+        } else {
+            _scheduledFlush = ctx.channel().eventLoop().schedule(_flushTask, _maxDelayMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        _readInProgress = true;
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        _readInProgress = false;
+        flushIfRequested(ctx);
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (!ctx.channel().isWritable()) {
+            // 写缓冲区已满, 不再等待
+            flushIfRequested(ctx);
+        }
+
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        flushIfRequested(ctx);
+        ctx.fireExceptionCaught(cause);
+    }
+
+    @Override
+    public void disconnect(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        flushIfRequested(ctx);
+        ctx.disconnect(promise);
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        flushIfRequested(ctx);
+        ctx.close(promise);
+    }
+
+    /**
+     * 如果有处理器请求过刷新, 则立即刷新
+     *
+     * @param ctx 信道处理器上下文
+     */
+    private void flushIfRequested(ChannelHandlerContext ctx) {
+        if (_flushRequested) {
+            flushNow(ctx);
+        }
+    }
+
+    /**
+     * 立即刷新
+     *
+     * @param ctx 信道处理器上下文
+     */
+    private void flushNow(ChannelHandlerContext ctx) {
+        if (null != _scheduledFlush) {
+            _scheduledFlush.cancel(false);
+            _scheduledFlush = null;
+        }
+
+        _pendingWrites = 0;
+        _flushRequested = false;
+        ctx.flush();
+    }
+}
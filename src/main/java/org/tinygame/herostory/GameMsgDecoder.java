@@ -1,58 +1,136 @@
 package org.tinygame.herostory;
 
-import com.google.protobuf.GeneratedMessageV3;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.tinygame.herostory.msg.GameMsgProtocol;
+import org.tinygame.herostory.metrics.MsgMetrics;
+
+import java.io.IOException;
 
 /**
  * 消息解码器
  */
 public class GameMsgDecoder extends ChannelInboundHandlerAdapter {
     private static final Logger LOGGER = LoggerFactory.getLogger(GameMsgDecoder.class);
+
+    /**
+     * 信道属性: 客户端是否支持信封消息
+     */
+    static final AttributeKey<Boolean> ENVELOPE_KEY = AttributeKey.valueOf("envelope");
+
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
         if (null == ctx || null == msg) {
             return;
         }
-        if (!(msg instanceof BinaryWebSocketFrame)) {
+
+        ByteBuf byteBuf;
+
+        if (msg instanceof BinaryWebSocketFrame) {
+            // WebSocket 二进制消息会通过 HttpServerCodec 解码成 BinaryWebSocketFrame 类对象
+            BinaryWebSocketFrame inputFrame = (BinaryWebSocketFrame) msg;
+            byteBuf = inputFrame.content();
+        } else if (msg instanceof ByteBuf) {
+            // 原生 TCP 消息会通过 LengthFieldBasedFrameDecoder 拆成完整的 ByteBuf
+            byteBuf = (ByteBuf) msg;
+        } else {
+            // 不是游戏消息, 直接释放
+            ReferenceCountUtil.release(msg);
             return;
         }
 
-        // WebSocket 二进制消息会通过 HttpServerCodec 解码成 BinaryWebSocketFrame 类对象
-        BinaryWebSocketFrame inputFrame = (BinaryWebSocketFrame) msg;
-        ByteBuf byteBuf = inputFrame.content();
+        try {
+            byteBuf.readShort();  // 读取消息的长度
+            int msgCode = byteBuf.readShort(); // 读取消息的编号
 
-        byteBuf.readShort();  // 读取消息的长度
-        int msgCode = byteBuf.readShort(); // 读取消息的编号
+            if (GameMsgRecognizer.ENVELOPE_MSG_CODE == msgCode) {
+                // 客户端发送过信封消息, 说明它也能解析信封消息,
+                // 之后发给它的多条消息可以合并成一个信封
+                ctx.channel().attr(ENVELOPE_KEY).set(Boolean.TRUE);
 
-        // 获取消息构建器
-        Message.Builder msgBuilder = GameMsgRecognizer.getBuilderByMsgCode(msgCode);
-        if (null == msgBuilder) {
+                // 逐条解析信封中的记录
+                while (byteBuf.readableBytes() >= 4) {
+                    int bodySize = byteBuf.readUnsignedShort(); // 读取记录的长度
+                    int recordMsgCode = byteBuf.readShort(); // 读取记录的编号
+
+                    if (byteBuf.readableBytes() < bodySize) {
+                        LOGGER.error("信封消息不完整, msgCode = {}", recordMsgCode);
+                        break;
+                    }
+
+                    ByteBuf recordBody = byteBuf.readSlice(bodySize);
+                    fireMsg(ctx, recordMsgCode, recordBody);
+                }
+            } else {
+                fireMsg(ctx, msgCode, byteBuf);
+            }
+        } finally {
+            // 消息已经解析完毕, 立即释放入站帧,
+            // 让池化的直接内存尽快回收
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    /**
+     * 解析消息体并传递给下一个处理器
+     *
+     * @param ctx     信道处理器上下文
+     * @param msgCode 消息编号
+     * @param msgBody 消息体
+     * @throws IOException 解析失败
+     */
+    private static void fireMsg(ChannelHandlerContext ctx, int msgCode, ByteBuf msgBody) throws IOException {
+        // 获取消息解析器
+        Parser<? extends Message> msgParser = GameMsgRecognizer.getParserByMsgCode(msgCode);
+        if (null == msgParser) {
             LOGGER.error("无法识别的消息, msgCode = {}", msgCode);
             return;
         }
 
-        // 拿到消息体
-        byte[] msgBody = new byte[byteBuf.readableBytes()];
-        byteBuf.readBytes(msgBody);
-
+        final long startTime = MsgMetrics.now();
 
-        msgBuilder.clear();
-        msgBuilder.mergeFrom(msgBody);
-
-        // 构建消息实体
-        Message newMsg = msgBuilder.build();
+        // 直接从 ByteBuf 中解析消息体,
+        // 不再拷贝到临时的 byte[] 中, 也不再经过 Message.Builder
+        Message newMsg = msgParser.parseFrom(newCodedInputStream(msgBody));
 
+        MsgMetrics.recordDecode(msgCode, startTime);
 
         if (null != newMsg) {
             ctx.fireChannelRead(newMsg);
         }
+    }
+
+    /**
+     * 根据 ByteBuf 的可读部分创建输入流,
+     * 单一内存块时直接使用 NIO 视图, 否则退回到流式读取
+     *
+     * @param byteBuf 消息体所在的 ByteBuf
+     * @return 输入流
+     */
+    private static CodedInputStream newCodedInputStream(ByteBuf byteBuf) {
+        if (byteBuf.hasArray()) {
+            return CodedInputStream.newInstance(
+                byteBuf.array(),
+                byteBuf.arrayOffset() + byteBuf.readerIndex(),
+                byteBuf.readableBytes()
+            );
+        }
+
+        if (1 == byteBuf.nioBufferCount()) {
+            return CodedInputStream.newInstance(
+                byteBuf.nioBuffer(byteBuf.readerIndex(), byteBuf.readableBytes())
+            );
+        }
 
+        return CodedInputStream.newInstance(new ByteBufInputStream(byteBuf));
     }
 }
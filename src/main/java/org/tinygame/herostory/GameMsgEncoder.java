@@ -1,13 +1,24 @@
 package org.tinygame.herostory;
 
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.GeneratedMessageV3;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOutboundHandlerAdapter;
 import io.netty.channel.ChannelPromise;
+import io.netty.channel.ChannelPromiseNotifier;
 import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.tinygame.herostory.metrics.MsgMetrics;
+import org.tinygame.herostory.util.ConfigUtil;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * 游戏消息编码器
@@ -18,6 +29,42 @@ public class GameMsgEncoder extends ChannelOutboundHandlerAdapter {
      */
     private static final Logger LOGGER = LoggerFactory.getLogger(GameMsgEncoder.class);
 
+    /**
+     * 是否允许合并成信封消息
+     */
+    private static final boolean ENVELOPE_ENABLED = ConfigUtil.getBoolean("msg.envelope", true);
+
+    /**
+     * 信封消息体的长度上限
+     */
+    private static final int MAX_BODY_SIZE = 65535;
+
+    /**
+     * 积压的消息列表, 刷新时合并写出
+     */
+    private final List<PendingMsg> _pendingList = new ArrayList<>();
+
+    /**
+     * 是否包装成 WebSocket 帧,
+     * 原生 TCP 信道直接写出 ByteBuf
+     */
+    private final boolean _wrapWebSocketFrame;
+
+    /**
+     * 类默认构造器, 用于 WebSocket 信道
+     */
+    public GameMsgEncoder() {
+        this(true);
+    }
+
+    /**
+     * 类参数构造器
+     *
+     * @param wrapWebSocketFrame 是否包装成 WebSocket 帧
+     */
+    public GameMsgEncoder(boolean wrapWebSocketFrame) {
+        _wrapWebSocketFrame = wrapWebSocketFrame;
+    }
 
     @Override
     public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
@@ -25,33 +72,253 @@ public class GameMsgEncoder extends ChannelOutboundHandlerAdapter {
             return;
         }
         try {
+            if (msg instanceof BinaryWebSocketFrame) {
+                if (isEnvelopeEnabled(ctx)) {
+                    // 广播时消息已经预先编码, 帧的内容就是一条完整的记录
+                    _pendingList.add(new PendingMsg(((BinaryWebSocketFrame) msg).content(), promise));
+                } else if (!_wrapWebSocketFrame) {
+                    // 广播时消息已经预先编码成 WebSocket 帧,
+                    // 原生 TCP 信道只写出帧的内容
+                    super.write(ctx, ((BinaryWebSocketFrame) msg).content(), promise);
+                } else {
+                    super.write(ctx, msg, promise);
+                }
+                return;
+            }
+
             if (!(msg instanceof GeneratedMessageV3)) {
+                // 先写出积压的消息, 保证顺序
+                writePending(ctx);
                 super.write(ctx, msg, promise);
                 return;
             }
 
             // 消息编码
-            int msgCode = GameMsgRecognizer.getMsgCodeByClazz(msg.getClass());
+            ByteBuf byteBuf = encode(ctx.alloc(), (GeneratedMessageV3) msg);
 
-            if (-1 == msgCode) {
+            if (null == byteBuf) {
                 LOGGER.error("无法识别的消息类型，msgClazz = {}", msg.getClass().getSimpleName());
                 super.write(ctx, msg, promise);
                 return;
             }
 
-            // 消息体
-            byte[] msgBody = ((GeneratedMessageV3) msg).toByteArray();
-
-            ByteBuf byteBuf = ctx.alloc().buffer();
-            byteBuf.writeShort((short) msgBody.length); // 消息的长度
-            byteBuf.writeShort((short) msgCode); //消息编号
-            byteBuf.writeBytes(msgBody);   // 消息体
+            if (isEnvelopeEnabled(ctx)) {
+                // 等到刷新时再合并成信封消息
+                _pendingList.add(new PendingMsg(byteBuf, promise));
+                return;
+            }
 
-            BinaryWebSocketFrame outputFrame = new BinaryWebSocketFrame(byteBuf);
-            super.write(ctx, outputFrame, promise);
+            writeFrame(ctx, byteBuf, promise);
         } catch (Exception e) {
             // 记录错误日志
             LOGGER.error(e.getMessage(), e);
         }
     }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        writePending(ctx);
+        super.flush(ctx);
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        writePending(ctx);
+        super.close(ctx, promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        // 释放尚未写出的消息
+        for (PendingMsg pendingMsg : _pendingList) {
+            pendingMsg._byteBuf.release();
+
+            if (!pendingMsg._promise.isVoid()) {
+                pendingMsg._promise.tryFailure(new ClosedChannelException());
+            }
+        }
+
+        _pendingList.clear();
+        super.handlerRemoved(ctx);
+    }
+
+    /**
+     * 是否对当前信道开启信封消息,
+     * 需要配置项 msg.envelope 开启, 并且客户端发送过信封消息
+     *
+     * @param ctx 信道处理器上下文
+     * @return true = 开启
+     */
+    private static boolean isEnvelopeEnabled(ChannelHandlerContext ctx) {
+        return ENVELOPE_ENABLED &&
+            Boolean.TRUE.equals(ctx.channel().attr(GameMsgDecoder.ENVELOPE_KEY).get());
+    }
+
+    /**
+     * 写出积压的消息,
+     * 只有一条时按普通消息写出, 多条时合并成信封消息,
+     * 信封消息体超出长度上限时拆成多个信封
+     *
+     * @param ctx 信道处理器上下文
+     */
+    private void writePending(ChannelHandlerContext ctx) {
+        if (_pendingList.isEmpty()) {
+            return;
+        }
+
+        int fromIndex = 0;
+        int bodySize = 0;
+
+        for (int i = 0; i < _pendingList.size(); i++) {
+            int recordSize = _pendingList.get(i)._byteBuf.readableBytes();
+
+            if (i > fromIndex &&
+                bodySize + recordSize > MAX_BODY_SIZE) {
+                writeEnvelope(ctx, fromIndex, i, bodySize);
+                fromIndex = i;
+                bodySize = 0;
+            }
+
+            bodySize += recordSize;
+        }
+
+        writeEnvelope(ctx, fromIndex, _pendingList.size(), bodySize);
+        _pendingList.clear();
+    }
+
+    /**
+     * 将积压列表中的一段写成一个信封消息
+     *
+     * @param ctx       信道处理器上下文
+     * @param fromIndex 起始索引 ( 含 )
+     * @param toIndex   结束索引 ( 不含 )
+     * @param bodySize  信封消息体长度
+     */
+    private void writeEnvelope(ChannelHandlerContext ctx, int fromIndex, int toIndex, int bodySize) {
+        if (1 == toIndex - fromIndex) {
+            PendingMsg pendingMsg = _pendingList.get(fromIndex);
+            writeFrame(ctx, pendingMsg._byteBuf, pendingMsg._promise);
+            return;
+        }
+
+        // 信封消息 = 消息头 + 多条完整的 "长度 + 编号 + 消息体" 记录,
+        // 使用组合缓冲区, 记录本身不再拷贝
+        ByteBuf headBuf = ctx.alloc().directBuffer(4);
+        headBuf.writeShort((short) bodySize); // 信封消息体长度
+        headBuf.writeShort((short) GameMsgRecognizer.ENVELOPE_MSG_CODE); // 信封消息编号
+
+        CompositeByteBuf envelopeBuf = ctx.alloc().compositeDirectBuffer(1 + toIndex - fromIndex);
+        envelopeBuf.addComponent(true, headBuf);
+
+        // 广播消息使用的是 voidPromise, 不能也不需要通知, 这里跳过
+        List<ChannelPromise> promiseList = new ArrayList<>(toIndex - fromIndex);
+
+        for (int i = fromIndex; i < toIndex; i++) {
+            PendingMsg pendingMsg = _pendingList.get(i);
+            envelopeBuf.addComponent(true, pendingMsg._byteBuf);
+
+            if (!pendingMsg._promise.isVoid()) {
+                promiseList.add(pendingMsg._promise);
+            }
+        }
+
+        if (promiseList.isEmpty()) {
+            writeFrame(ctx, envelopeBuf, ctx.voidPromise());
+            return;
+        }
+
+        ChannelPromise envelopePromise = ctx.newPromise();
+        envelopePromise.addListener(new ChannelPromiseNotifier(promiseList.toArray(new ChannelPromise[0])));
+
+        writeFrame(ctx, envelopeBuf, envelopePromise);
+    }
+
+    /**
+     * 写出编码后的消息, 必要时包装成 WebSocket 帧
+     *
+     * @param ctx     信道处理器上下文
+     * @param byteBuf 编码后的消息
+     * @param promise 写出结果
+     */
+    private void writeFrame(ChannelHandlerContext ctx, ByteBuf byteBuf, ChannelPromise promise) {
+        if (_wrapWebSocketFrame) {
+            ctx.write(new BinaryWebSocketFrame(byteBuf), promise);
+        } else {
+            ctx.write(byteBuf, promise);
+        }
+    }
+
+    /**
+     * 将消息编码到池化的直接内存中,
+     * 缓冲区大小按消息头 + 消息体精确分配, 消息体直接序列化进缓冲区,
+     * 不再经过 toByteArray 产生的临时数组
+     *
+     * @param alloc 内存分配器
+     * @param msg   消息对象
+     * @return 编码后的 ByteBuf, 消息类型无法识别时返回 null
+     * @throws IOException 序列化失败
+     */
+    public static ByteBuf encode(ByteBufAllocator alloc, GeneratedMessageV3 msg) throws IOException {
+        if (null == alloc || null == msg) {
+            return null;
+        }
+
+        int msgCode = GameMsgRecognizer.getMsgCode(msg);
+
+        if (-1 == msgCode) {
+            return null;
+        }
+
+        final long startTime = MsgMetrics.now();
+
+        // 消息体长度
+        final int bodySize = msg.getSerializedSize();
+
+        ByteBuf byteBuf = alloc.directBuffer(4 + bodySize);
+
+        try {
+            byteBuf.writeShort((short) bodySize); // 消息的长度
+            byteBuf.writeShort((short) msgCode);  // 消息编号
+
+            // 消息体, 直接写入 ByteBuf 的 NIO 视图
+            int bodyIndex = byteBuf.writerIndex();
+            CodedOutputStream out = CodedOutputStream.newInstance(byteBuf.nioBuffer(bodyIndex, bodySize));
+            msg.writeTo(out);
+            out.flush();
+            out.checkNoSpaceLeft();
+            byteBuf.writerIndex(bodyIndex + bodySize);
+
+            MsgMetrics.recordEncode(msgCode, startTime);
+            return byteBuf;
+        } catch (IOException | RuntimeException e) {
+            byteBuf.release();
+            throw e;
+        }
+    }
+
+    /**
+     * 积压的消息
+     */
+    private static class PendingMsg {
+        /**
+         * 编码后的消息
+         */
+        private final ByteBuf _byteBuf;
+
+        /**
+         * 写出结果
+         */
+        private final ChannelPromise _promise;
+
+        /**
+         * 类参数构造器
+         *
+         * @param byteBuf 编码后的消息
+         * @param promise 写出结果
+         */
+        PendingMsg(ByteBuf byteBuf, ChannelPromise promise) {
+            _byteBuf = byteBuf;
+            _promise = promise;
+        }
+    }
 }
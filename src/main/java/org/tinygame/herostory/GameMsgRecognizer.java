@@ -1,16 +1,18 @@
 package org.tinygame.herostory;
 
+import com.google.protobuf.Descriptors;
 import com.google.protobuf.GeneratedMessageV3;
 import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.tinygame.herostory.msg.GameMsgProtocol;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
- * 消息识别器
+ * 消息识别器,
+ * 所有查找都通过按消息编号索引的数组完成, 热路径上没有哈希查找, 也没有装箱
  */
 public final class GameMsgRecognizer {
     /**
@@ -19,14 +21,32 @@ public final class GameMsgRecognizer {
     private static final Logger LOGGER = LoggerFactory.getLogger(GameMsgRecognizer.class);
 
     /**
-     * 消息编号 -> 消息体字典
+     * 信封消息编号,
+     * 信封消息体由多条完整的 "长度 + 编号 + 消息体" 记录组成,
+     * 不在 GameMsgProtocol.MsgCode 中定义, 取 short 的最大值避免冲突
      */
-    private static final Map<Integer, GeneratedMessageV3> _msgCodeAndMsgBodyMap = new HashMap<>();
+    public static final int ENVELOPE_MSG_CODE = Short.MAX_VALUE;
 
     /**
-     * 消息类型 -> 消息编号字典
+     * 消息协议的文件描述符
      */
-    private static final Map<Class<?>, Integer> _msgClazzAndMsgCodeMap = new HashMap<>();
+    private static final Descriptors.FileDescriptor MSG_FILE = GameMsgProtocol.getDescriptor();
+
+    /**
+     * 消息编号 -> 消息默认实例数组
+     */
+    private static GeneratedMessageV3[] _defaultMsgArray = new GeneratedMessageV3[0];
+
+    /**
+     * 消息编号 -> 消息解析器数组
+     */
+    private static Parser<?>[] _parserArray = new Parser<?>[0];
+
+    /**
+     * 消息类型索引 -> 消息编号数组,
+     * 消息类型索引就是消息在 GameMsgProtocol 中的声明顺序 ( Descriptor.getIndex )
+     */
+    private static int[] _msgIndexAndMsgCodeArray = new int[0];
 
     /**
      * 私有化类默认构造器
@@ -34,63 +54,84 @@ public final class GameMsgRecognizer {
     private GameMsgRecognizer() {}
 
     /**
-     * 初始化
+     * 初始化,
+     * 消息注册表由 RegistryProcessor 在编译时生成, 启动时不再遍历内部类, 也不再反射调用.
+     * 如果有消息编号没有对应的消息类, 直接抛出异常
      */
     public static void init() {
         LOGGER.info("==== 完成消息体与消息编号的关联 ====");
 
-        // 获取所有内部类
-        Class<?>[] innerClazzArray = GameMsgProtocol.class.getDeclaredClasses();
+        _defaultMsgArray = new GeneratedMessageV3[0];
+        _parserArray = new Parser<?>[0];
+        _msgIndexAndMsgCodeArray = new int[0];
+        GameMsgRegistry.registerAll();
 
-        for (Class<?> innerClazz : innerClazzArray) {
-            if (null == innerClazz ||
-                    !GeneratedMessageV3.class.isAssignableFrom(innerClazz)) {
-                // 如果不是消息类
+        for (GameMsgProtocol.MsgCode msgCode : GameMsgProtocol.MsgCode.values()) {
+            if (GameMsgProtocol.MsgCode.UNRECOGNIZED == msgCode) {
                 continue;
             }
 
-            // 获取类名称并转成小写
-            String clazzName = innerClazz.getSimpleName();
-            clazzName = clazzName.toLowerCase();
+            if (null == getDefaultMsg(msgCode.getNumber())) {
+                throw new IllegalStateException("消息编号没有对应的消息类, msgCode = " + msgCode);
+            }
+        }
+    }
 
-            // 接下来遍历 MsgCode 枚举
-            for (GameMsgProtocol.MsgCode msgCode : GameMsgProtocol.MsgCode.values()) {
-                if (null == msgCode) {
-                    continue;
-                }
+    /**
+     * 注册消息, 由编译时生成的注册表调用
+     *
+     * @param msgCode    消息编号
+     * @param defaultMsg 消息的默认实例
+     */
+    static void register(int msgCode, GeneratedMessageV3 defaultMsg) {
+        if (msgCode < 0 ||
+            null == defaultMsg) {
+            return;
+        }
 
-                // 获取消息编码
-                // 获取枚举名称并转成小写
-                String strMsgCode = msgCode.name();
-                strMsgCode = strMsgCode.replaceAll("_", "");
-                strMsgCode = strMsgCode.toLowerCase();
+        Descriptors.Descriptor msgDesc = defaultMsg.getDescriptorForType();
 
-                if (!strMsgCode.startsWith(clazzName)) {
-                    continue;
-                }
+        if (MSG_FILE != msgDesc.getFile() ||
+            null != msgDesc.getContainingType()) {
+            throw new IllegalArgumentException("不是 GameMsgProtocol 中的顶层消息, msgClazz = " + defaultMsg.getClass().getName());
+        }
 
-                // 消息编号名称和类名称正好相同,
-                // 则建立关系
+        LOGGER.info("关联 {} <==> {}", defaultMsg.getClass().getName(), msgCode);
 
-                try {
-                    // 调用 XxxCmd 或者 XxxResult 的 getDefaultInstance 静态方法,
-                    // 目的是返回默认实例
-                    Object returnObj = innerClazz.getDeclaredMethod("getDefaultInstance").invoke(innerClazz);
+        // 数组只在启动时扩容
+        if (msgCode >= _defaultMsgArray.length) {
+            _defaultMsgArray = Arrays.copyOf(_defaultMsgArray, msgCode + 1);
+            _parserArray = Arrays.copyOf(_parserArray, msgCode + 1);
+        }
 
-                    LOGGER.info("关联 {} <==> {}", innerClazz.getName(), msgCode.getNumber());
+        int msgIndex = msgDesc.getIndex();
 
-                    // 关联消息编号与消息体
+        if (msgIndex >= _msgIndexAndMsgCodeArray.length) {
+            int oldLen = _msgIndexAndMsgCodeArray.length;
+            _msgIndexAndMsgCodeArray = Arrays.copyOf(_msgIndexAndMsgCodeArray, msgIndex + 1);
+            Arrays.fill(_msgIndexAndMsgCodeArray, oldLen, _msgIndexAndMsgCodeArray.length, -1);
+        }
 
-                    _msgCodeAndMsgBodyMap.put(msgCode.getNumber(), (GeneratedMessageV3) returnObj);
+        // 关联消息编号与消息体
+        _defaultMsgArray[msgCode] = defaultMsg;
+        _parserArray[msgCode] = defaultMsg.getParserForType();
+        // 关联消息类型与消息编号
+        _msgIndexAndMsgCodeArray[msgIndex] = msgCode;
+    }
 
-                    // 关联消息类与消息编号
-                    _msgClazzAndMsgCodeMap.put(innerClazz, msgCode.getNumber());
-                } catch (Exception e) {
-                    // 记录错误日志
-                    LOGGER.error(e.getMessage(), e);
-                }
-            }
+    /**
+     * 根据消息编号获取消息默认实例
+     *
+     * @param msgCode
+     * @return
+     */
+    private static GeneratedMessageV3 getDefaultMsg(int msgCode) {
+        if (msgCode < 0 ||
+            msgCode >= _defaultMsgArray.length) {
+            return null;
         }
+
+        return _defaultMsgArray[msgCode];
     }
 
     /**
@@ -100,12 +141,8 @@ public final class GameMsgRecognizer {
      * @return
      */
     public static Message.Builder getBuilderByMsgCode(int msgCode) {
-        if (msgCode < 0) {
-            return null;
-        }
-
         // 获取消息对象
-        GeneratedMessageV3 defaultMsg = _msgCodeAndMsgBodyMap.get(msgCode);
+        GeneratedMessageV3 defaultMsg = getDefaultMsg(msgCode);
 
         if (null == defaultMsg) {
             return null;
@@ -115,7 +152,52 @@ public final class GameMsgRecognizer {
     }
 
     /**
-     * 根据消息类获取消息编号
+     * 根据消息编号获取消息解析器
+     *
+     * @param msgCode
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public static Parser<? extends Message> getParserByMsgCode(int msgCode) {
+        if (msgCode < 0 ||
+            msgCode >= _parserArray.length) {
+            return null;
+        }
+
+        return (Parser<? extends Message>) _parserArray[msgCode];
+    }
+
+    /**
+     * 获取消息编号,
+     * 通过消息类型索引直接查数组
+     *
+     * @param msg 消息对象
+     * @return 消息编号, 无法识别时返回 -1
+     */
+    public static int getMsgCode(Message msg) {
+        if (null == msg) {
+            return -1;
+        }
+
+        Descriptors.Descriptor msgDesc = msg.getDescriptorForType();
+
+        if (MSG_FILE != msgDesc.getFile() ||
+            null != msgDesc.getContainingType()) {
+            return -1;
+        }
+
+        int msgIndex = msgDesc.getIndex();
+
+        if (msgIndex >= _msgIndexAndMsgCodeArray.length) {
+            return -1;
+        }
+
+        return _msgIndexAndMsgCodeArray[msgIndex];
+    }
+
+    /**
+     * 根据消息类获取消息编号,
+     * 只在启动等非热路径上使用, 热路径请使用 getMsgCode
      *
      * @param msgClazz
      * @return
@@ -124,12 +206,14 @@ public final class GameMsgRecognizer {
         if (null == msgClazz) {
             return -1;
         }
-        Integer msgCode = _msgClazzAndMsgCodeMap.get(msgClazz);
 
-        if (null == msgCode) {
-            return -1;
-        } else {
-            return msgCode;
+        for (int msgCode = 0; msgCode < _defaultMsgArray.length; msgCode++) {
+            if (null != _defaultMsgArray[msgCode] &&
+                msgClazz == _defaultMsgArray[msgCode].getClass()) {
+                return msgCode;
+            }
         }
+
+        return -1;
     }
 }
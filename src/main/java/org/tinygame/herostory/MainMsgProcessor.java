@@ -6,9 +6,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.tinygame.herostory.cmdhandler.CmdHandlerFactory;
 import org.tinygame.herostory.cmdhandler.ICmdHandler;
+import org.tinygame.herostory.mailbox.BusySpinWaitStrategy;
+import org.tinygame.herostory.mailbox.IWaitStrategy;
+import org.tinygame.herostory.mailbox.MpscMailbox;
+import org.tinygame.herostory.metrics.MsgMetrics;
+import org.tinygame.herostory.tick.ITickSystem;
+import org.tinygame.herostory.util.ConfigUtil;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * 主消息处理器
@@ -25,18 +36,144 @@ public final class MainMsgProcessor {
     private static final MainMsgProcessor _instance = new MainMsgProcessor();
 
     /**
-     * 创建一个单线程的线程池
+     * 当前线程所在的分片索引, 不是分片线程时为 null
      */
-    private final ExecutorService _es = Executors.newSingleThreadExecutor((newRunnable) -> {
-        Thread newThread = new Thread(newRunnable);
-        newThread.setName("MainMsgProcessor");
-        return newThread;
-    });
+    private static final ThreadLocal<Integer> _currShardIndex = new ThreadLocal<>();
+
+    /**
+     * 分片线程数组,
+     * 每个分片都是一个单线程的线程池, 只有一个分片时等同于原来的单线程模式.
+     * 使用环形缓冲区邮箱时为 null
+     */
+    private final ExecutorService[] _esArray;
+
+    /**
+     * 分片邮箱数组,
+     * 每个分片一个无锁环形缓冲区邮箱和一个消费者线程.
+     * 使用线程池时为 null
+     */
+    private final MpscMailbox[] _mailboxArray;
+
+    /**
+     * 邮箱已满时是否关闭客户端信道, false = 只丢弃命令并记录日志
+     */
+    private final boolean _closeOnOverflow;
+
+    /**
+     * 邮箱已满时丢弃的命令数量
+     */
+    private final LongAdder _overflowCount = new LongAdder();
+
+    /**
+     * 帧系统列表
+     */
+    private final List<ITickSystem> _tickSystemList = new CopyOnWriteArrayList<>();
 
     /**
      * 私有化类默认构造器
      */
     private MainMsgProcessor() {
+        final int shardCount = Math.max(1, ConfigUtil.getInt("main.shardCount", 1));
+        _closeOnOverflow = "close".equalsIgnoreCase(ConfigUtil.getString("main.mailboxOverflow", "reject"));
+
+        if ("tick".equalsIgnoreCase(ConfigUtil.getString("main.mode", "immediate"))) {
+            // 固定帧率模式, 输入先进入邮箱, 每帧统一处理一次
+            final int capacity = ConfigUtil.getInt("main.mailboxCapacity", 65536);
+            final int tickRate = Math.max(1, ConfigUtil.getInt("main.tickRate", 20));
+            final long tickPeriodMicros = TimeUnit.SECONDS.toMicros(1) / tickRate;
+
+            _esArray = null;
+            _mailboxArray = new MpscMailbox[shardCount];
+
+            for (int i = 0; i < _mailboxArray.length; i++) {
+                // 消费者由帧线程驱动, 不需要等待策略
+                _mailboxArray[i] = new MpscMailbox(capacity, new BusySpinWaitStrategy());
+
+                final int shardIndex = i;
+                ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor(
+                    (newRunnable) -> newShardThread(shardCount, shardIndex, newRunnable)
+                );
+
+                ses.scheduleAtFixedRate(
+                    new TickRun(i, _mailboxArray[i]),
+                    tickPeriodMicros,
+                    tickPeriodMicros,
+                    TimeUnit.MICROSECONDS
+                );
+            }
+
+            LOGGER.info("使用固定帧率模式, tickRate = {}", tickRate);
+            return;
+        }
+
+        if ("ring".equalsIgnoreCase(ConfigUtil.getString("main.mailbox", "executor"))) {
+            // 无锁环形缓冲区邮箱
+            final int capacity = ConfigUtil.getInt("main.mailboxCapacity", 65536);
+            final String waitStrategy = ConfigUtil.getString("main.waitStrategy", "blocking");
+
+            _esArray = null;
+            _mailboxArray = new MpscMailbox[shardCount];
+
+            for (int i = 0; i < _mailboxArray.length; i++) {
+                final int shardIndex = i;
+                _mailboxArray[i] = new MpscMailbox(capacity, IWaitStrategy.of(waitStrategy));
+                // 消费者线程由邮箱创建, 第一封邮件先记下分片索引
+                _mailboxArray[i].offer(() -> _currShardIndex.set(shardIndex));
+                _mailboxArray[i].start(newThreadName(shardCount, i));
+            }
+
+            LOGGER.info("使用环形缓冲区邮箱, capacity = {}, waitStrategy = {}", capacity, waitStrategy);
+            return;
+        }
+
+        _esArray = new ExecutorService[shardCount];
+        _mailboxArray = null;
+
+        for (int i = 0; i < _esArray.length; i++) {
+            final int shardIndex = i;
+            _esArray[i] = Executors.newSingleThreadExecutor(
+                (newRunnable) -> newShardThread(shardCount, shardIndex, newRunnable)
+            );
+        }
+    }
+
+    /**
+     * 创建分片线程, 线程启动时记下分片索引
+     *
+     * @param shardCount  分片数量
+     * @param shardIndex  分片索引
+     * @param newRunnable 线程要执行的 Runnable
+     * @return 分片线程
+     */
+    private static Thread newShardThread(int shardCount, int shardIndex, Runnable newRunnable) {
+        Thread newThread = new Thread(() -> {
+            _currShardIndex.set(shardIndex);
+            newRunnable.run();
+        });
+        newThread.setName(newThreadName(shardCount, shardIndex));
+        return newThread;
+    }
+
+    /**
+     * 添加帧系统, 只在固定帧率模式下生效
+     *
+     * @param tickSystem 帧系统
+     */
+    public void addTickSystem(ITickSystem tickSystem) {
+        if (null != tickSystem) {
+            _tickSystemList.add(tickSystem);
+        }
+    }
+
+    /**
+     * 生成分片线程名称
+     *
+     * @param shardCount 分片数量
+     * @param shardIndex 分片索引
+     * @return 线程名称
+     */
+    private static String newThreadName(int shardCount, int shardIndex) {
+        return (1 == shardCount) ? "MainMsgProcessor" : "MainMsgProcessor[ " + shardIndex + " ]";
     }
 
     /**
@@ -46,6 +183,36 @@ public final class MainMsgProcessor {
         return _instance;
     }
 
+    /**
+     * 获取分片数量
+     *
+     * @return 分片数量
+     */
+    public int getShardCount() {
+        return (null != _mailboxArray) ? _mailboxArray.length : _esArray.length;
+    }
+
+    /**
+     * 获取当前线程所在的分片索引,
+     * 分片索引本身也可以作为分片键, process(shardIndex, r) 会回到同一个分片
+     *
+     * @return 分片索引, 不是分片线程时返回 -1
+     */
+    public static int currShardIndex() {
+        Integer shardIndex = _currShardIndex.get();
+        return (null == shardIndex) ? -1 : shardIndex;
+    }
+
+    /**
+     * 当前线程是否就是分片键对应的分片线程
+     *
+     * @param shardKey 分片键
+     * @return true = 是, 可以直接修改该分片的数据
+     */
+    public boolean inShard(int shardKey) {
+        return shardIndex(shardKey) == currShardIndex();
+    }
+
     /**
      * 处理客户端消息
      *
@@ -61,31 +228,118 @@ public final class MainMsgProcessor {
 
         LOGGER.info("收到客户端消息，msgClazz = {}, msg = {}", msgClazz.getSimpleName(), msg);
 
-        // 在单线程线程池中运行
-        _es.submit(() -> {
+        final long enqueueTime = MsgMetrics.now();
+        final int msgCode = (msg instanceof GeneratedMessageV3) ? GameMsgRecognizer.getMsgCode((GeneratedMessageV3) msg) : -1;
+        ICmdHandler<? extends GeneratedMessageV3> cmdHandler;
+
+        if (-1 != msgCode) {
+            // 按消息编号直接查数组
+            cmdHandler = CmdHandlerFactory.create(msgCode);
+        } else {
+            cmdHandler = CmdHandlerFactory.create(msgClazz);
+        }
+
+        if (null == cmdHandler) {
+            LOGGER.error("未找到命令处理器, msgClazz = {}", msgClazz.getName());
+            return;
+        }
+
+        // 按分片键选择线程, 分片键相同的命令在同一线程中按顺序处理
+        int shardKey = cmdHandler.getShardKey(ctx, cast(msg));
+
+        if (null != _mailboxArray) {
+            // 直接写入预先分配的槽位, 不创建 lambda 和 FutureTask.
+            // 注意: 这里是 IO 线程, 邮箱已满时不能等待, 否则整个事件循环上的信道都会停住
+            if (!_mailboxArray[shardIndex(shardKey)].offer(cmdHandler, ctx, msg, msgCode, enqueueTime)) {
+                onMailboxOverflow(ctx, msgClazz);
+            }
+            return;
+        }
+
+        _esArray[shardIndex(shardKey)].submit(() -> {
+            final long startTime = MsgMetrics.now();
+            boolean success = false;
+            MsgMetrics.recordQueueWait(msgCode, enqueueTime, startTime);
+
             try {
-                ICmdHandler<? extends GeneratedMessageV3> cmdHandler = CmdHandlerFactory.create(msg.getClass());
-                if (null != cmdHandler) {
-                    cmdHandler.handle(ctx, cast(msg));
-                }
+                cmdHandler.handle(ctx, cast(msg));
+                success = true;
             } catch (Exception e) {
                 LOGGER.error(e.getMessage(), e);
+            } finally {
+                MsgMetrics.recordHandle(msgCode, startTime, success);
             }
         });
 
     }
 
     /**
-     * 处理 Runnable 实例
+     * 邮箱已满时丢弃命令, 按配置 main.mailboxOverflow 决定是否关闭客户端信道
+     *
+     * @param ctx      客户端信道上下文
+     * @param msgClazz 消息类
+     */
+    private void onMailboxOverflow(ChannelHandlerContext ctx, Class<?> msgClazz) {
+        _overflowCount.increment();
+
+        if (_closeOnOverflow) {
+            LOGGER.warn("邮箱已满, 关闭客户端信道, msgClazz = {}, channel = {}", msgClazz.getSimpleName(), ctx.channel());
+            ctx.close();
+        } else {
+            LOGGER.warn("邮箱已满, 丢弃命令, msgClazz = {}, channel = {}", msgClazz.getSimpleName(), ctx.channel());
+        }
+    }
+
+    /**
+     * 获取邮箱已满时丢弃的命令数量
+     *
+     * @return 命令数量
+     */
+    public long getOverflowCount() {
+        return _overflowCount.sum();
+    }
+
+    /**
+     * 处理 Runnable 实例,
+     * 在第一个分片中运行.
+     *
+     * 注意: 会修改玩家数据的逻辑应该使用 process(shardKey, r), 回到该玩家所在的分片
      *
      * @param r Runnable
      */
     public void process(Runnable r) {
+        process(0, r);
+    }
+
+    /**
+     * 处理 Runnable 实例,
+     * 在分片键对应的分片中运行
+     *
+     * @param shardKey 分片键
+     * @param r        Runnable
+     */
+    public void process(int shardKey, Runnable r) {
         if (null == r) {
             return;
         }
 
-        _es.submit(new SafeRun(r));
+        if (null != _mailboxArray) {
+            // 邮箱在处理时会捕获异常, 不需要再包装
+            _mailboxArray[shardIndex(shardKey)].offer(r);
+        } else {
+            _esArray[shardIndex(shardKey)].submit(new SafeRun(r));
+        }
+    }
+
+    /**
+     * 根据分片键计算分片索引
+     *
+     * @param shardKey 分片键
+     * @return 分片索引
+     */
+    private int shardIndex(int shardKey) {
+        // 注意: 不能使用 Math.abs, Integer.MIN_VALUE 取绝对值后仍是负数
+        return (shardKey & Integer.MAX_VALUE) % getShardCount();
     }
 
     /**
@@ -136,4 +390,73 @@ public final class MainMsgProcessor {
         }
     }
 
+
+    /**
+     * 帧运行,
+     * 每帧依次: 处理本帧开始前收到的所有输入, 执行帧系统, 一起发出本帧的广播消息
+     */
+    private class TickRun implements Runnable {
+        /**
+         * 分片索引
+         */
+        private final int _shardIndex;
+
+        /**
+         * 输入邮箱
+         */
+        private final MpscMailbox _mailbox;
+
+        /**
+         * 帧序号
+         */
+        private long _tickCount = 0;
+
+        /**
+         * 类参数构造器
+         *
+         * @param shardIndex 分片索引
+         * @param mailbox    输入邮箱
+         */
+        TickRun(int shardIndex, MpscMailbox mailbox) {
+            _shardIndex = shardIndex;
+            _mailbox = mailbox;
+        }
+
+        @Override
+        public void run() {
+            // 注意: 定时任务抛出异常后不会再执行,
+            // 所以这里必须捕获所有异常
+            try {
+                ++_tickCount;
+
+                // 本帧的广播先暂存, 帧结束时一起发出
+                Broadcaster.beginBatch();
+
+                // 只处理本帧开始前收到的输入,
+                // 本帧处理过程中新收到的输入留到下一帧.
+                // 注意: drain 的参数小于等于 0 表示不限, 所以本帧开始时没有输入就不能调用
+                final int pendingCount = _mailbox.pendingCount();
+
+                if (pendingCount > 0) {
+                    _mailbox.drain(pendingCount);
+                }
+
+                final long nowTime = System.currentTimeMillis();
+
+                for (ITickSystem tickSystem : _tickSystemList) {
+                    try {
+                        tickSystem.onTick(_shardIndex, _tickCount, nowTime);
+                    } catch (Throwable t) {
+                        // 记录错误日志, 一个帧系统出错不影响其他帧系统
+                        LOGGER.error(t.getMessage(), t);
+                    }
+                }
+            } catch (Throwable t) {
+                // 记录错误日志
+                LOGGER.error(t.getMessage(), t);
+            } finally {
+                Broadcaster.endBatch();
+            }
+        }
+    }
 }
@@ -0,0 +1,129 @@
+package org.tinygame.herostory;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tinygame.herostory.util.ConfigUtil;
+
+/**
+ * 网络传输方式,
+ * 在 Linux 上优先使用 epoll 原生传输, 不可用时回退到 NIO
+ */
+public final class NettyTransport {
+    /**
+     * 日志对象
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(NettyTransport.class);
+
+    /**
+     * 是否使用 epoll
+     */
+    private static volatile Boolean _useEpoll = null;
+
+    /**
+     * 私有化类默认构造器
+     */
+    private NettyTransport() {}
+
+    /**
+     * 是否使用 epoll 原生传输,
+     * 由配置项 server.transport 决定: auto / epoll / nio
+     *
+     * @return true = 使用 epoll
+     */
+    public static boolean useEpoll() {
+        if (null != _useEpoll) {
+            return _useEpoll;
+        }
+
+        String transport = ConfigUtil.getString("server.transport", "auto").toLowerCase();
+        boolean useEpoll;
+
+        switch (transport) {
+            case "nio":
+                useEpoll = false;
+                break;
+
+            case "epoll":
+                useEpoll = Epoll.isAvailable();
+
+                if (!useEpoll) {
+                    LOGGER.warn(
+                        "epoll 原生传输不可用, 回退到 NIO, cause = {}",
+                        String.valueOf(Epoll.unavailabilityCause())
+                    );
+                }
+                break;
+
+            default:
+                useEpoll = Epoll.isAvailable();
+                break;
+        }
+
+        LOGGER.info("网络传输方式 = {}", useEpoll ? "epoll" : "nio");
+        _useEpoll = useEpoll;
+
+        return useEpoll;
+    }
+
+    /**
+     * 创建事件循环组
+     *
+     * @param nThreads   线程数量, 0 = 使用 Netty 默认值 ( CPU 核数 * 2 )
+     * @param threadName 线程名称前缀
+     * @return 事件循环组
+     */
+    public static EventLoopGroup newEventLoopGroup(int nThreads, String threadName) {
+        DefaultThreadFactory tf = new DefaultThreadFactory(threadName);
+
+        if (useEpoll()) {
+            return new EpollEventLoopGroup(Math.max(0, nThreads), tf);
+        } else {
+            return new NioEventLoopGroup(Math.max(0, nThreads), tf);
+        }
+    }
+
+    /**
+     * 获取服务器信道类
+     *
+     * @return 服务器信道类
+     */
+    public static Class<? extends ServerChannel> serverChannelClazz() {
+        if (useEpoll()) {
+            return EpollServerSocketChannel.class;
+        } else {
+            return NioServerSocketChannel.class;
+        }
+    }
+
+    /**
+     * 开启 SO_REUSEPORT,
+     * 使多个服务器进程或同一进程内的多个接收器可以监听同一端口,
+     * 由内核在它们之间分配新连接, 只有 epoll 传输支持该选项
+     *
+     * @param b 服务器启动器
+     * @return true = 已开启
+     */
+    public static boolean enableReusePort(ServerBootstrap b) {
+        if (null == b) {
+            return false;
+        }
+
+        if (!useEpoll()) {
+            LOGGER.warn("SO_REUSEPORT 需要 epoll 原生传输, 当前为 NIO, 忽略该选项");
+            return false;
+        }
+
+        b.option(EpollChannelOption.SO_REUSEPORT, true);
+        return true;
+    }
+}
@@ -1,22 +1,32 @@
 package org.tinygame.herostory;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.compression.ZlibCodecFactory;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandler;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateServerExtensionHandshaker;
 import org.apache.log4j.PropertyConfigurator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.tinygame.herostory.cmdhandler.CmdHandlerFactory;
+import org.tinygame.herostory.metrics.MetricsHttpHandler;
 import org.tinygame.herostory.mq.MqProducer;
+import org.tinygame.herostory.util.ConfigUtil;
 import org.tinygame.herostory.util.RedisUtil;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * 游戏服务器主入口类
  */
@@ -37,10 +47,12 @@ public class ServerMain {
         // 设置 log4j 属性文件
         PropertyConfigurator.configure(ServerMain.class.getClassLoader().getResourceAsStream("log4j.properties"));
 
-        // 初始化命令处理器工厂
-        CmdHandlerFactory.init();
+        // 初始化配置
+        ConfigUtil.init();
         // 初始化消息识别器
         GameMsgRecognizer.init();
+        // 初始化命令处理器工厂, 依赖消息识别器中的消息编号
+        CmdHandlerFactory.init();
         // 初始化MySql 会话工厂
         MySqlSessionFactory.init();
         // 初始化Redis
@@ -48,41 +60,186 @@ public class ServerMain {
         // 初始化消息队列
         MqProducer.init();
 
-        EventLoopGroup bossGroup = new NioEventLoopGroup();     // 只处理连接
-        EventLoopGroup workerGroup = new NioEventLoopGroup();   // 负责处理读写
+        final int port = ConfigUtil.getInt("server.port", 12345);
+        // 原生 TCP 端口, 0 = 不开启
+        final int tcpPort = ConfigUtil.getInt("server.tcpPort", 0);
 
-        ServerBootstrap b = new ServerBootstrap();
-        b.group(bossGroup, workerGroup);
-        b.channel(NioServerSocketChannel.class); // 服务器通道的处理方式
-        b.childHandler(new ChannelInitializer<SocketChannel>() { // 客户端信道的处理器方式
+        // 接收器数量, 只有开启 SO_REUSEPORT 时才能让多个接收器绑定同一端口
+        final boolean reusePort = ConfigUtil.getBoolean("server.reusePort", false);
+        final int acceptorCount = Math.max(1, ConfigUtil.getInt("server.acceptorCount", 1));
+        final int bindCount = (reusePort && NettyTransport.useEpoll()) ? acceptorCount : 1;
+
+        EventLoopGroup bossGroup = NettyTransport.newEventLoopGroup(    // 只处理连接, 每个接收器独占一个线程
+            Math.max(acceptorCount, ConfigUtil.getInt("server.bossThreads", 1)), "boss"
+        );
+        EventLoopGroup workerGroup = NettyTransport.newEventLoopGroup(  // 负责处理读写
+            ConfigUtil.getInt("server.workerThreads", 0), "worker"
+        );
+
+        // WebSocket 压缩配置
+        final boolean wsCompress = ConfigUtil.getBoolean("websocket.compress", false);
+        final int wsCompressLevel = ConfigUtil.getInt("websocket.compressLevel", 6);
+        final int wsCompressThreshold = ConfigUtil.getInt("websocket.compressThreshold", 512);
+
+        // 指标接口配置, 与 WebSocket 共用同一个端口
+        final boolean metricsEnabled = ConfigUtil.getBoolean("metrics.enabled", true);
+        final String metricsPath = ConfigUtil.getString("metrics.path", "/metrics");
+        final boolean metricsLocalOnly = ConfigUtil.getBoolean("metrics.localOnly", true);
+
+        // WebSocket 服务器, 供浏览器客户端使用
+        ServerBootstrap wsBootstrap = newBootstrap(bossGroup, workerGroup, reusePort);
+        wsBootstrap.childHandler(new ChannelInitializer<SocketChannel>() { // 客户端信道的处理器方式
             @Override
             protected void initChannel(SocketChannel ch) throws Exception {
                 ch.pipeline().addLast(
                     new HttpServerCodec(), // Http 服务器编解码器
-                    new HttpObjectAggregator(65535), // 内容长度限制
-                    new WebSocketServerProtocolHandler("/websocket"), // WebSocket 协议处理器, 在这里处理握手、ping、pong 等消息
+                    new HttpObjectAggregator(65535) // 内容长度限制
+                );
+
+                if (metricsEnabled) {
+                    // 指标接口, 其他 Http 请求继续交给 WebSocket 协议处理器
+                    ch.pipeline().addLast(new MetricsHttpHandler(metricsPath, metricsLocalOnly));
+                }
+
+                if (wsCompress) {
+                    // permessage-deflate 压缩扩展, 在握手时与客户端协商,
+                    // 只压缩超过阈值的消息
+                    ch.pipeline().addLast(new WebSocketServerExtensionHandler(
+                        new PerMessageDeflateServerExtensionHandshaker(
+                            wsCompressLevel,
+                            ZlibCodecFactory.isSupportingWindowSizeAndMemLevel(),
+                            PerMessageDeflateServerExtensionHandshaker.MAX_WINDOW_SIZE,
+                            false,
+                            false,
+                            new DeflateThresholdFilterProvider(wsCompressThreshold)
+                        )
+                    ));
+                }
+
+                ch.pipeline().addLast(
+                    new WebSocketServerProtocolHandler("/websocket", null, wsCompress), // WebSocket 协议处理器, 在这里处理握手、ping、pong 等消息
                     new GameMsgDecoder(), // 自定义的消息解码器
                     new GameMsgEncoder(), // 自定义的消息编码器
                     new GameMsgHandler() // 自定义的消息处理器
                 );
+                addFlushConsolidator(ch);
+            }
+        });
+
+        // 原生 TCP 服务器, 供原生客户端和机器人使用,
+        // 跳过 Http 和 WebSocket 协议层, 直接按长度字段拆帧
+        ServerBootstrap tcpBootstrap = newBootstrap(bossGroup, workerGroup, reusePort);
+        tcpBootstrap.childHandler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) throws Exception {
+                ch.pipeline().addLast(
+                    // 消息格式: 消息长度 ( 2 字节, 不含消息头 ) + 消息编号 ( 2 字节 ) + 消息体
+                    new LengthFieldBasedFrameDecoder(65535 + 4, 0, 2, 2, 0),
+                    new GameMsgDecoder(), // 自定义的消息解码器
+                    new GameMsgEncoder(false), // 自定义的消息编码器, 不包装 WebSocket 帧
+                    new GameMsgHandler() // 自定义的消息处理器
+                );
+                addFlushConsolidator(ch);
             }
         });
 
         try {
-            // 绑定 12345 端口,
-            // 注意: 实际项目中会使用 argArray 中的参数来指定端口号
-            ChannelFuture f = b.bind(12345).sync();
+            List<Channel> serverChList = new ArrayList<>();
 
-            if (f.isSuccess()) {
-                LOGGER.info("服务器启动成功!");
+            // 绑定端口, 端口号由配置项 server.port 指定,
+            // 开启 SO_REUSEPORT 时每个接收器各绑定一次, 由内核分配连接
+            bind(wsBootstrap, port, bindCount, serverChList);
+
+            if (tcpPort > 0) {
+                bind(tcpBootstrap, tcpPort, bindCount, serverChList);
             }
 
+            LOGGER.info(
+                "服务器启动成功! port = {}, tcpPort = {}, serverChCount = {}",
+                port,
+                tcpPort,
+                serverChList.size()
+            );
+
             // 等待服务器信道关闭,
             // 也就是不要退出应用程序,
             // 让应用程序可以一直提供服务
-            f.channel().closeFuture().sync();
+            for (Channel serverCh : serverChList) {
+                serverCh.closeFuture().sync();
+            }
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            workerGroup.shutdownGracefully();
+            bossGroup.shutdownGracefully();
+        }
+    }
+
+    /**
+     * 创建服务器启动器, 并设置通用的信道选项
+     *
+     * @param bossGroup   接收连接的事件循环组
+     * @param workerGroup 负责读写的事件循环组
+     * @param reusePort   是否开启 SO_REUSEPORT
+     * @return 服务器启动器
+     */
+    private static ServerBootstrap newBootstrap(EventLoopGroup bossGroup, EventLoopGroup workerGroup, boolean reusePort) {
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(bossGroup, workerGroup);
+        b.channel(NettyTransport.serverChannelClazz()); // 服务器通道的处理方式, epoll 或 NIO
+        b.option(ChannelOption.SO_BACKLOG, ConfigUtil.getInt("server.soBacklog", 1024));
+
+        if (reusePort) {
+            // 开启 SO_REUSEPORT 后, 多个进程可以同时监听同一端口,
+            // 滚动重启时新进程先启动, 旧进程再退出, 不会出现无法接受连接的间隙
+            NettyTransport.enableReusePort(b);
+        }
+
+        b.childOption(ChannelOption.TCP_NODELAY, ConfigUtil.getBoolean("server.tcpNoDelay", true));
+        b.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(
+            ConfigUtil.getInt("server.writeBufferLowWaterMark", 32 * 1024),
+            ConfigUtil.getInt("server.writeBufferHighWaterMark", 64 * 1024)
+        ));
+
+        return b;
+    }
+
+    /**
+     * 在游戏消息处理器前面添加刷新合并器,
+     * 由配置项 flush.consolidate 决定是否开启
+     *
+     * @param ch 客户端信道
+     */
+    private static void addFlushConsolidator(SocketChannel ch) {
+        if (null == ch ||
+            !ConfigUtil.getBoolean("flush.consolidate", true)) {
+            return;
+        }
+
+        String handlerName = ch.pipeline().context(GameMsgHandler.class).name();
+        ch.pipeline().addBefore(handlerName, null, new FlushConsolidator(
+            ConfigUtil.getLong("flush.maxDelayMicros", 0),
+            ConfigUtil.getInt("flush.maxPendingWrites", 64)
+        ));
+    }
+
+    /**
+     * 绑定端口,
+     * 开启 SO_REUSEPORT 时绑定多次, 否则只绑定一次
+     *
+     * @param b            服务器启动器
+     * @param port         端口号
+     * @param bindCount    绑定次数
+     * @param serverChList 服务器信道列表, 绑定成功的信道会加入其中
+     * @throws InterruptedException 绑定时被中断
+     */
+    private static void bind(ServerBootstrap b, int port, int bindCount, List<Channel> serverChList) throws InterruptedException {
+        for (int i = 0; i < bindCount; i++) {
+            ChannelFuture f = b.bind(port).sync();
+
+            if (f.isSuccess()) {
+                serverChList.add(f.channel());
+            }
         }
     }
 }
@@ -0,0 +1,284 @@
+package org.tinygame.herostory.apt;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * 注册表生成器,
+ * 在编译时生成命令处理器注册表 ( CmdHandlerRegistry ) 和消息注册表 ( GameMsgRegistry ),
+ * 启动时不再扫描类路径, 也不再反射调用.
+ *
+ * 注意: 这个类在 pom.xml 中先于其他代码单独编译, 不能依赖工程中的其他类.
+ * 注册表总是按整个包生成, 不只看本次参与编译的类, 增量编译 ( 例如 IDE 只重新编译修改过的类 ) 时也不会漏掉处理器.
+ * 这个类只在编译时使用, 不打进运行时的 jar 包
+ */
+@SupportedAnnotationTypes("*")
+public class RegistryProcessor extends AbstractProcessor {
+    /**
+     * 命令处理器接口
+     */
+    private static final String CMD_HANDLER_INTERFACE = "org.tinygame.herostory.cmdhandler.ICmdHandler";
+
+    /**
+     * 命令处理器注册表所在的包, 命令处理器必须放在这个包中
+     */
+    private static final String CMD_HANDLER_PACKAGE = "org.tinygame.herostory.cmdhandler";
+
+    /**
+     * 消息协议类
+     */
+    private static final String MSG_PROTOCOL_CLAZZ = "org.tinygame.herostory.msg.GameMsgProtocol";
+
+    /**
+     * 消息基类
+     */
+    private static final String MSG_BASE_CLAZZ = "com.google.protobuf.GeneratedMessageV3";
+
+    /**
+     * 消息注册表所在的包
+     */
+    private static final String MSG_PACKAGE = "org.tinygame.herostory";
+
+    /**
+     * 是否已经生成
+     */
+    private boolean _generated = false;
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (_generated ||
+            roundEnv.processingOver()) {
+            return false;
+        }
+
+        _generated = true;
+
+        try {
+            // 命令处理器注册表
+            Map<String, String> handlerMap = collectCmdHandler();
+
+            if (!handlerMap.isEmpty()) {
+                writeCmdHandlerRegistry(handlerMap);
+            }
+
+            // 消息注册表,
+            // 消息协议类没有参与本次编译时也能从类路径上读到, 同样重新生成
+            TypeElement protocolElem = processingEnv.getElementUtils().getTypeElement(MSG_PROTOCOL_CLAZZ);
+
+            if (null != protocolElem) {
+                Map<String, String> msgMap = collectMsg(protocolElem);
+
+                if (!msgMap.isEmpty()) {
+                    writeMsgRegistry(msgMap);
+                }
+            }
+        } catch (Exception e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "生成注册表失败: " + e);
+        }
+
+        return false;
+    }
+
+    /**
+     * 收集命令处理器,
+     * 遍历命令处理器包中的所有类, 包括本次参与编译的源文件和类路径上已经编译好的类
+     *
+     * @return 消息类名称 -> 命令处理器类名称字典
+     */
+    private Map<String, String> collectCmdHandler() {
+        Map<String, String> handlerMap = new TreeMap<>();
+        PackageElement packageElem = processingEnv.getElementUtils().getPackageElement(CMD_HANDLER_PACKAGE);
+
+        if (null == packageElem) {
+            return handlerMap;
+        }
+
+        for (Element elem : packageElem.getEnclosedElements()) {
+            if (ElementKind.CLASS != elem.getKind() ||
+                elem.getModifiers().contains(Modifier.ABSTRACT)) {
+                continue;
+            }
+
+            TypeElement handlerElem = (TypeElement) elem;
+
+            for (TypeMirror interfaceType : handlerElem.getInterfaces()) {
+                DeclaredType declaredType = (DeclaredType) interfaceType;
+                TypeElement interfaceElem = (TypeElement) declaredType.asElement();
+
+                if (!CMD_HANDLER_INTERFACE.contentEquals(interfaceElem.getQualifiedName()) ||
+                    1 != declaredType.getTypeArguments().size()) {
+                    continue;
+                }
+
+                TypeMirror msgType = declaredType.getTypeArguments().get(0);
+                TypeElement msgElem = (TypeElement) processingEnv.getTypeUtils().asElement(msgType);
+                String msgClazzName = msgElem.getQualifiedName().toString();
+                String handlerClazzName = handlerElem.getQualifiedName().toString();
+
+                String existHandler = handlerMap.put(msgClazzName, handlerClazzName);
+
+                if (null != existHandler) {
+                    processingEnv.getMessager().printMessage(
+                        Diagnostic.Kind.ERROR,
+                        "消息 " + msgClazzName + " 有多个命令处理器: " + existHandler + ", " + handlerClazzName,
+                        handlerElem
+                    );
+                }
+            }
+        }
+
+        return handlerMap;
+    }
+
+    /**
+     * 收集消息编号与消息类的对应关系,
+     * 规则与原来运行时的规则相同: 去掉下划线并转成小写后, 消息编号名称与类名称相同.
+     * 没有对应消息类的消息编号会直接导致编译失败
+     *
+     * @param protocolElem 消息协议类
+     * @return 消息编号名称 -> 消息类名称字典
+     */
+    private Map<String, String> collectMsg(TypeElement protocolElem) {
+        TypeMirror msgBaseType = processingEnv.getTypeUtils().erasure(
+            processingEnv.getElementUtils().getTypeElement(MSG_BASE_CLAZZ).asType()
+        );
+
+        // 小写类名称 -> 消息类名称
+        Map<String, String> clazzNameMap = new TreeMap<>();
+        // 消息编号名称列表
+        List<String> msgCodeList = new ArrayList<>();
+
+        for (Element innerElem : protocolElem.getEnclosedElements()) {
+            if (ElementKind.CLASS == innerElem.getKind() &&
+                processingEnv.getTypeUtils().isAssignable(innerElem.asType(), msgBaseType)) {
+                TypeElement msgElem = (TypeElement) innerElem;
+                clazzNameMap.put(
+                    msgElem.getSimpleName().toString().toLowerCase(),
+                    msgElem.getQualifiedName().toString()
+                );
+            }
+
+            if (ElementKind.ENUM == innerElem.getKind() &&
+                "MsgCode".contentEquals(innerElem.getSimpleName())) {
+                for (Element constElem : innerElem.getEnclosedElements()) {
+                    if (ElementKind.ENUM_CONSTANT == constElem.getKind() &&
+                        !"UNRECOGNIZED".contentEquals(constElem.getSimpleName())) {
+                        msgCodeList.add(constElem.getSimpleName().toString());
+                    }
+                }
+            }
+        }
+
+        Map<String, String> msgMap = new TreeMap<>();
+
+        for (String msgCode : msgCodeList) {
+            String msgClazzName = clazzNameMap.get(msgCode.replace("_", "").toLowerCase());
+
+            if (null == msgClazzName) {
+                processingEnv.getMessager().printMessage(
+                    Diagnostic.Kind.ERROR,
+                    "消息编号 " + msgCode + " 没有对应的消息类",
+                    protocolElem
+                );
+                continue;
+            }
+
+            msgMap.put(msgCode, msgClazzName);
+        }
+
+        return msgMap;
+    }
+
+    /**
+     * 生成命令处理器注册表
+     *
+     * @param handlerMap 消息类名称 -> 命令处理器类名称字典
+     * @throws Exception 写文件失败
+     */
+    private void writeCmdHandlerRegistry(Map<String, String> handlerMap) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        sb.append("package ").append(CMD_HANDLER_PACKAGE).append(";\n\n");
+        sb.append("/**\n");
+        sb.append(" * 命令处理器注册表, 由 RegistryProcessor 在编译时生成, 请勿手工修改\n");
+        sb.append(" */\n");
+        sb.append("final class CmdHandlerRegistry {\n");
+        sb.append("    private CmdHandlerRegistry() {}\n\n");
+        sb.append("    static void registerAll() {\n");
+
+        for (Map.Entry<String, String> entry : handlerMap.entrySet()) {
+            sb.append("        CmdHandlerFactory.register(")
+                .append(entry.getKey()).append(".class, new ")
+                .append(entry.getValue()).append("());\n");
+        }
+
+        sb.append("    }\n");
+        sb.append("}\n");
+
+        writeSource(CMD_HANDLER_PACKAGE + ".CmdHandlerRegistry", sb.toString());
+    }
+
+    /**
+     * 生成消息注册表
+     *
+     * @param msgMap 消息编号名称 -> 消息类名称字典
+     * @throws Exception 写文件失败
+     */
+    private void writeMsgRegistry(Map<String, String> msgMap) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        sb.append("package ").append(MSG_PACKAGE).append(";\n\n");
+        sb.append("/**\n");
+        sb.append(" * 消息注册表, 由 RegistryProcessor 在编译时生成, 请勿手工修改\n");
+        sb.append(" */\n");
+        sb.append("final class GameMsgRegistry {\n");
+        sb.append("    private GameMsgRegistry() {}\n\n");
+        sb.append("    static void registerAll() {\n");
+
+        for (Map.Entry<String, String> entry : msgMap.entrySet()) {
+            sb.append("        GameMsgRecognizer.register(")
+                .append(MSG_PROTOCOL_CLAZZ).append(".MsgCode.").append(entry.getKey()).append("_VALUE, ")
+                .append(entry.getValue()).append(".getDefaultInstance());\n");
+        }
+
+        sb.append("    }\n");
+        sb.append("}\n");
+
+        writeSource(MSG_PACKAGE + ".GameMsgRegistry", sb.toString());
+    }
+
+    /**
+     * 写出源文件
+     *
+     * @param clazzName 类名称
+     * @param source    源代码
+     * @throws Exception 写文件失败
+     */
+    private void writeSource(String clazzName, String source) throws Exception {
+        JavaFileObject fileObj = processingEnv.getFiler().createSourceFile(clazzName);
+
+        try (Writer w = fileObj.openWriter()) {
+            w.write(source);
+        }
+    }
+}
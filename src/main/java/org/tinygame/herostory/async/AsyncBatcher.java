@@ -0,0 +1,259 @@
+package org.tinygame.herostory.async;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * 异步批量加载器,
+ * 同一类查询在短时间内的多次请求合并成一次批量调用 ( 例如 SELECT ... IN, Redis 管道 ),
+ * 再把结果分发给各个调用方.
+ *
+ * 批次在异步通道中执行, 执行时才取出所有积压的请求,
+ * 所以通道越忙批次越大; 空闲时第一个请求不需要额外等待.
+ * 批次之间互不依赖, 每个批次轮换使用不同的绑定 Id, 分散到各个通道中并行执行
+ *
+ * @param <K> 键类型
+ * @param <V> 值类型
+ */
+public final class AsyncBatcher<K, V> {
+    /**
+     * 日志对象
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncBatcher.class);
+
+    /**
+     * 名称
+     */
+    private final String _name;
+
+    /**
+     * 下一个批次的绑定 Id, 每提交一个批次加一
+     */
+    private final AtomicInteger _nextBindId;
+
+    /**
+     * 合并窗口 ( 微秒 ), 0 = 不额外等待
+     */
+    private final long _windowMicros;
+
+    /**
+     * 每个批次最多包含的键数量
+     */
+    private final int _maxBatchSize;
+
+    /**
+     * 批量加载函数, 返回的字典中没有的键, 结果为 null
+     */
+    private final Function<Collection<K>, Map<K, V>> _batchLoader;
+
+    /**
+     * 依赖名称, 不为 null 时批次在该依赖的隔离通道池中执行, 并受该依赖的熔断器保护
+     */
+    private final String _dependency;
+
+    /**
+     * 等待加载的键 -> future 字典
+     */
+    private Map<K, CompletableFuture<V>> _pendingMap = new LinkedHashMap<>();
+
+    /**
+     * 是否已经计划过批次
+     */
+    private boolean _flushScheduled = false;
+
+    /**
+     * 类参数构造器
+     *
+     * @param name         名称
+     * @param windowMicros 合并窗口 ( 微秒 ), 0 = 不额外等待
+     * @param maxBatchSize 每个批次最多包含的键数量
+     * @param batchLoader  批量加载函数
+     */
+    public AsyncBatcher(String name, long windowMicros, int maxBatchSize, Function<Collection<K>, Map<K, V>> batchLoader) {
+        this(name, null, windowMicros, maxBatchSize, batchLoader);
+    }
+
+    /**
+     * 类参数构造器
+     *
+     * @param name         名称
+     * @param dependency   依赖名称 ( 例如 mysql ), null = 不使用熔断器
+     * @param windowMicros 合并窗口 ( 微秒 ), 0 = 不额外等待
+     * @param maxBatchSize 每个批次最多包含的键数量
+     * @param batchLoader  批量加载函数
+     */
+    public AsyncBatcher(String name, String dependency, long windowMicros, int maxBatchSize, Function<Collection<K>, Map<K, V>> batchLoader) {
+        if (null == batchLoader) {
+            throw new IllegalArgumentException("batchLoader is null");
+        }
+
+        _name = name;
+        _nextBindId = new AtomicInteger((null == name) ? 0 : name.hashCode());
+        _windowMicros = Math.max(0, windowMicros);
+        _maxBatchSize = Math.max(1, maxBatchSize);
+        _batchLoader = batchLoader;
+        _dependency = dependency;
+    }
+
+    /**
+     * 加载,
+     * 同一批次中相同的键只加载一次, 这些调用方得到的是同一个 future.
+     *
+     * 注意: future 可能被多个调用方共享, 调用方不应直接完成或取消它,
+     * 需要单独设置超时时请先用 thenApply 等方法派生出自己的 future
+     *
+     * @param key 键
+     * @return future, 在异步线程中完成
+     */
+    public CompletableFuture<V> load(K key) {
+        CompletableFuture<V> future;
+        Map<K, CompletableFuture<V>> fullBatch = null;
+        boolean scheduleFlush = false;
+
+        synchronized (this) {
+            future = _pendingMap.get(key);
+
+            if (null != future) {
+                return future;
+            }
+
+            future = new CompletableFuture<>();
+            _pendingMap.put(key, future);
+
+            if (_pendingMap.size() >= _maxBatchSize) {
+                // 批次已满, 立即执行
+                fullBatch = takeBatch();
+            } else if (!_flushScheduled) {
+                _flushScheduled = true;
+                scheduleFlush = true;
+            }
+        }
+
+        if (null != fullBatch) {
+            final Map<K, CompletableFuture<V>> batch = fullBatch;
+            submit(() -> runBatch(batch), batch);
+        } else if (scheduleFlush) {
+            if (_windowMicros <= 0) {
+                flushAsync();
+            } else {
+                AsyncTimer.schedule(this::flushAsync, _windowMicros, TimeUnit.MICROSECONDS);
+            }
+        }
+
+        return future;
+    }
+
+    /**
+     * 在异步通道中执行所有积压的请求
+     */
+    private void flushAsync() {
+        submit(() -> {
+            Map<K, CompletableFuture<V>> batch;
+
+            synchronized (this) {
+                _flushScheduled = false;
+                batch = takeBatch();
+            }
+
+            runBatch(batch);
+        }, null);
+    }
+
+    /**
+     * 提交到异步通道,
+     * 被拒绝或熔断 ( 任务没有执行 ) 时批次中的请求全部以异常完成
+     *
+     * @param r     任务
+     * @param batch 批次, 为 null 时表示所有积压的请求
+     */
+    private void submit(Runnable r, Map<K, CompletableFuture<V>> batch) {
+        // 任务是否已经开始执行, 已经执行的批次由 runBatch 完成
+        final AtomicBoolean started = new AtomicBoolean(false);
+
+        // 每个批次换一个绑定 Id, 否则所有批次都在同一个通道中依次执行
+        AsyncOperationProcessor.getInstance().supplyAsync(_nextBindId.getAndIncrement(), _dependency, 0, () -> {
+            started.set(true);
+            r.run();
+            return null;
+        }).whenComplete((v, ex) -> {
+            if (null == ex ||
+                started.get()) {
+                return;
+            }
+
+            Map<K, CompletableFuture<V>> failedBatch = batch;
+
+            if (null == failedBatch) {
+                synchronized (this) {
+                    _flushScheduled = false;
+                    failedBatch = takeBatch();
+                }
+            }
+
+            for (CompletableFuture<V> future : failedBatch.values()) {
+                future.completeExceptionally(ex);
+            }
+        });
+    }
+
+    /**
+     * 取出积压的请求, 需要在同步块中调用
+     *
+     * @return 批次
+     */
+    private Map<K, CompletableFuture<V>> takeBatch() {
+        if (_pendingMap.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        Map<K, CompletableFuture<V>> batch = _pendingMap;
+        _pendingMap = new LinkedHashMap<>();
+
+        return batch;
+    }
+
+    /**
+     * 执行批次, 并把结果分发给各个调用方.
+     * 批量加载失败时异常继续抛出, 由熔断器统计
+     *
+     * @param batch 批次
+     */
+    private void runBatch(Map<K, CompletableFuture<V>> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        try {
+            Map<K, V> resultMap = _batchLoader.apply(batch.keySet());
+
+            if (null == resultMap) {
+                resultMap = Collections.emptyMap();
+            }
+
+            for (Map.Entry<K, CompletableFuture<V>> entry : batch.entrySet()) {
+                entry.getValue().complete(resultMap.get(entry.getKey()));
+            }
+
+            LOGGER.debug("批量加载完成, name = {}, batchSize = {}", _name, batch.size());
+        } catch (Throwable t) {
+            // 记录错误日志
+            LOGGER.error(t.getMessage(), t);
+
+            for (CompletableFuture<V> future : batch.values()) {
+                future.completeExceptionally(t);
+            }
+
+            throw t;
+        }
+    }
+}
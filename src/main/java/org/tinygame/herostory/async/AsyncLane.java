@@ -0,0 +1,287 @@
+package org.tinygame.herostory.async;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 异步通道,
+ * 限制排队和正在执行的操作总数, 超出容量时直接拒绝, 不再无限排队.
+ * 同时记录深度, 排队时间和执行时间
+ */
+final class AsyncLane {
+    /**
+     * 日志对象
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncLane.class);
+
+    /**
+     * 通道名称
+     */
+    private final String _laneName;
+
+    /**
+     * 容量
+     */
+    private final int _capacity;
+
+    /**
+     * 单线程执行器, 使用按键串行执行器时为 null
+     */
+    private final ExecutorService _es;
+
+    /**
+     * 按键串行执行器, 使用单线程执行器时为 null
+     */
+    private final KeySerialExecutor _keySerialExecutor;
+
+    /**
+     * 当前深度, -1 = 通道已关闭
+     */
+    private final AtomicInteger _depth = new AtomicInteger(0);
+
+    /**
+     * 是否已退役,
+     * 退役的通道不再分配新的绑定 Id, 只执行已有绑定 Id 的剩余操作, 深度降为 0 时关闭
+     */
+    private volatile boolean _retired = false;
+
+    /**
+     * 已接受的操作数量
+     */
+    private final LongAdder _acceptedCount = new LongAdder();
+
+    /**
+     * 被拒绝的操作数量
+     */
+    private final LongAdder _rejectedCount = new LongAdder();
+
+    /**
+     * 已执行完的操作数量
+     */
+    private final LongAdder _completedCount = new LongAdder();
+
+    /**
+     * 累计排队时间 ( 纳秒 )
+     */
+    private final LongAdder _totalWaitNanos = new LongAdder();
+
+    /**
+     * 最大排队时间 ( 纳秒 )
+     */
+    private final AtomicLong _maxWaitNanos = new AtomicLong(0);
+
+    /**
+     * 累计执行时间 ( 纳秒 )
+     */
+    private final LongAdder _totalExecNanos = new LongAdder();
+
+    /**
+     * 最大执行时间 ( 纳秒 )
+     */
+    private final AtomicLong _maxExecNanos = new AtomicLong(0);
+
+    /**
+     * 类参数构造器, 使用单线程执行器
+     *
+     * @param laneName 通道名称
+     * @param capacity 容量
+     * @param es       单线程执行器
+     */
+    AsyncLane(String laneName, int capacity, ExecutorService es) {
+        _laneName = laneName;
+        _capacity = Math.max(1, capacity);
+        _es = es;
+        _keySerialExecutor = null;
+    }
+
+    /**
+     * 类参数构造器, 使用按键串行执行器
+     *
+     * @param laneName          通道名称
+     * @param capacity          容量
+     * @param keySerialExecutor 按键串行执行器
+     */
+    AsyncLane(String laneName, int capacity, KeySerialExecutor keySerialExecutor) {
+        _laneName = laneName;
+        _capacity = Math.max(1, capacity);
+        _es = null;
+        _keySerialExecutor = keySerialExecutor;
+    }
+
+    /**
+     * 获取通道名称
+     *
+     * @return 通道名称
+     */
+    String getLaneName() {
+        return _laneName;
+    }
+
+    /**
+     * 获取当前深度
+     *
+     * @return 排队和正在执行的操作总数
+     */
+    int getDepth() {
+        return Math.max(0, _depth.get());
+    }
+
+    /**
+     * 通道是否已关闭
+     *
+     * @return true = 已关闭
+     */
+    boolean isClosed() {
+        return _depth.get() < 0;
+    }
+
+    /**
+     * 退役通道,
+     * 深度降为 0 时关闭
+     */
+    void retire() {
+        _retired = true;
+        tryClose();
+    }
+
+    /**
+     * 如果通道已退役并且已空闲, 则关闭通道
+     */
+    private void tryClose() {
+        // 注意: 关闭与占用容量都是对深度做 CAS,
+        // 所以关闭之后不会再有操作进入通道
+        if (_retired &&
+            _depth.compareAndSet(0, -1)) {
+            LOGGER.info("异步通道已关闭, lane = {}", _laneName);
+
+            if (null != _es) {
+                _es.shutdown();
+            }
+        }
+    }
+
+    /**
+     * 执行任务
+     *
+     * @param bindId 绑定 Id
+     * @param task   任务
+     * @return true = 已接受, false = 通道已满或已关闭, 任务被拒绝
+     */
+    boolean execute(int bindId, Runnable task) {
+        if (null == task) {
+            return false;
+        }
+
+        if (!tryAcquire()) {
+            if (!isClosed()) {
+                _rejectedCount.increment();
+            }
+
+            return false;
+        }
+
+        _acceptedCount.increment();
+
+        final long enqueueTime = System.nanoTime();
+        Runnable wrapper = () -> {
+            final long startTime = System.nanoTime();
+            record(_totalWaitNanos, _maxWaitNanos, startTime - enqueueTime);
+
+            try {
+                task.run();
+            } catch (Exception e) {
+                // 记录错误日志
+                LOGGER.error(e.getMessage(), e);
+            } finally {
+                record(_totalExecNanos, _maxExecNanos, System.nanoTime() - startTime);
+                _completedCount.increment();
+
+                if (0 == _depth.decrementAndGet()) {
+                    tryClose();
+                }
+            }
+        };
+
+        try {
+            if (null != _keySerialExecutor) {
+                _keySerialExecutor.execute(bindId, wrapper);
+            } else {
+                _es.execute(wrapper);
+            }
+        } catch (Exception e) {
+            // 执行器已关闭
+            _depth.decrementAndGet();
+            tryClose();
+            _rejectedCount.increment();
+            LOGGER.error(e.getMessage(), e);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * 占用一个容量
+     *
+     * @return true = 占用成功
+     */
+    private boolean tryAcquire() {
+        while (true) {
+            int currDepth = _depth.get();
+
+            if (currDepth < 0 ||
+                currDepth >= _capacity) {
+                return false;
+            }
+
+            if (_depth.compareAndSet(currDepth, currDepth + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 记录耗时
+     *
+     * @param total 累计值
+     * @param max   最大值
+     * @param nanos 本次耗时 ( 纳秒 )
+     */
+    private static void record(LongAdder total, AtomicLong max, long nanos) {
+        total.add(nanos);
+
+        long currMax;
+
+        while (nanos > (currMax = max.get())) {
+            if (max.compareAndSet(currMax, nanos)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 获取统计数据快照
+     *
+     * @return 统计数据
+     */
+    AsyncLaneStats getStats() {
+        AsyncLaneStats stats = new AsyncLaneStats();
+        stats.laneName = _laneName;
+        stats.capacity = _capacity;
+        stats.depth = getDepth();
+        stats.acceptedCount = _acceptedCount.sum();
+        stats.rejectedCount = _rejectedCount.sum();
+        stats.completedCount = _completedCount.sum();
+        stats.totalWaitNanos = _totalWaitNanos.sum();
+        stats.maxWaitNanos = _maxWaitNanos.get();
+        stats.totalExecNanos = _totalExecNanos.sum();
+        stats.maxExecNanos = _maxExecNanos.get();
+
+        return stats;
+    }
+}
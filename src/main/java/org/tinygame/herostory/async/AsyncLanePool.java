@@ -0,0 +1,367 @@
+package org.tinygame.herostory.async;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 异步通道池,
+ * 一组通道 ( 线程 ) 和它们的哈希环. 默认通道池执行没有声明依赖的操作,
+ * 每个隔离的依赖 ( mysql, redis, mq ... ) 各有一个通道池, 互不占用线程和容量
+ */
+final class AsyncLanePool {
+    /**
+     * 日志对象
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncLanePool.class);
+
+    /**
+     * 通道池名称, 同时用作线程名称前缀
+     */
+    private final String _poolName;
+
+    /**
+     * 通道哈希环,
+     * 使用平台线程时每个通道一个线程;
+     * 使用共享线程池 ( 虚拟线程或工作窃取线程池 ) 时只有一个通道, 容量为所有通道容量之和
+     */
+    private volatile AsyncLaneRing _laneRing;
+
+    /**
+     * 是否使用共享线程池
+     */
+    private final boolean _sharedPool;
+
+    /**
+     * 每个通道的容量
+     */
+    private final int _laneCapacity;
+
+    /**
+     * 绑定 Id -> 执行中的操作字典,
+     * 有操作在执行或排队的绑定 Id 固定在原来的通道, 全部完成后才会按新的哈希环换通道,
+     * 这样调整通道数量时同一绑定 Id 的操作仍然按顺序执行
+     */
+    private final ConcurrentHashMap<Integer, InFlight> _inFlightMap = new ConcurrentHashMap<>();
+
+    /**
+     * 类参数构造器
+     *
+     * @param poolName     通道池名称
+     * @param threadMode   线程模式, auto / virtual / platform / steal
+     * @param laneCount    通道数量
+     * @param laneCapacity 每个通道的容量
+     * @param stealThreads 工作窃取线程池的线程数量, 0 = 与通道数量相同
+     */
+    AsyncLanePool(String poolName, String threadMode, int laneCount, int laneCapacity, int stealThreads) {
+        laneCount = Math.max(1, laneCount);
+        laneCapacity = Math.max(1, laneCapacity);
+
+        Executor sharedEs = null;
+        String sharedName = null;
+
+        _poolName = poolName;
+        _laneCapacity = laneCapacity;
+
+        if ("steal".equalsIgnoreCase(threadMode)) {
+            // 工作窃取线程池, 线程数量默认与通道数量相同
+            sharedName = poolName + "-s";
+            sharedEs = newWorkStealingPool((stealThreads > 0) ? stealThreads : laneCount, sharedName + "-");
+        } else if (!"platform".equalsIgnoreCase(threadMode)) {
+            sharedName = poolName + "-v";
+            ExecutorService virtualEs = newVirtualThreadExecutor(sharedName + "-");
+
+            if (null != virtualEs) {
+                // 虚拟线程没有数量上限, 同时执行的操作数量限制为通道数量,
+                // 否则隔离通道池 ( 例如 mysql ) 起不到限制并发的作用
+                sharedEs = newBoundedExecutor(virtualEs, laneCount);
+            } else if ("virtual".equalsIgnoreCase(threadMode)) {
+                LOGGER.warn("当前 JVM 不支持虚拟线程, 回退到平台线程, pool = {}", poolName);
+            }
+        }
+
+        _sharedPool = (null != sharedEs);
+
+        if (_sharedPool) {
+            // 所有绑定 Id 共用一个线程池, 每个绑定 Id 一个轻量队列, 同一绑定 Id 的操作依次执行
+            _laneRing = new AsyncLaneRing(new AsyncLane[] {
+                new AsyncLane(sharedName, laneCount * laneCapacity, new KeySerialExecutor(sharedEs))
+            });
+            LOGGER.info("异步通道池使用共享线程池, lane = {}, capacity = {}, concurrency = {}", sharedName, laneCount * laneCapacity, laneCount);
+        } else {
+            AsyncLane[] laneArray = new AsyncLane[laneCount];
+
+            for (int i = 0; i < laneArray.length; i++) {
+                laneArray[i] = newPlatformLane(i);
+            }
+
+            _laneRing = new AsyncLaneRing(laneArray);
+            LOGGER.info("异步通道池使用平台线程, pool = {}, laneCount = {}, laneCapacity = {}", poolName, laneCount, laneCapacity);
+        }
+    }
+
+    /**
+     * 创建平台线程通道
+     *
+     * @param laneId 通道 Id
+     * @return 通道
+     */
+    private AsyncLane newPlatformLane(int laneId) {
+        final String threadName = _poolName + "[ " + laneId + " ]";
+        ExecutorService es = Executors.newSingleThreadExecutor((r) -> {
+            Thread t = new Thread(r);
+            t.setName(threadName);
+            return t;
+        });
+
+        return new AsyncLane(threadName, _laneCapacity, es);
+    }
+
+    /**
+     * 获取通道池名称
+     *
+     * @return 通道池名称
+     */
+    String getPoolName() {
+        return _poolName;
+    }
+
+    /**
+     * 获取通道数量
+     *
+     * @return 通道数量
+     */
+    int getLaneCount() {
+        return _laneRing.getLaneCount();
+    }
+
+    /**
+     * 在绑定 Id 对应的通道中执行任务
+     *
+     * @param bindId 绑定 Id
+     * @param r      任务
+     * @param op     原始操作, 用于记录日志
+     * @return true = 已接受, false = 被拒绝
+     */
+    boolean execute(int bindId, Runnable r, Object op) {
+        final Runnable task = () -> {
+            try {
+                r.run();
+            } finally {
+                // 绑定 Id 的操作全部完成后, 解除与通道的绑定
+                _inFlightMap.computeIfPresent(bindId, (k, inFlight) -> (--inFlight._count <= 0) ? null : inFlight);
+            }
+        };
+
+        // 被拒绝时所在的通道
+        final AsyncLane[] rejectLane = { null };
+
+        _inFlightMap.compute(bindId, (k, inFlight) -> {
+            if (null != inFlight) {
+                // 还有操作未完成, 继续使用原来的通道
+                if (inFlight._lane.execute(bindId, task)) {
+                    ++inFlight._count;
+                } else {
+                    rejectLane[0] = inFlight._lane;
+                }
+
+                return inFlight;
+            }
+
+            while (true) {
+                AsyncLane lane = _laneRing.select(bindId);
+
+                if (lane.execute(bindId, task)) {
+                    return new InFlight(lane);
+                }
+
+                if (!lane.isClosed()) {
+                    rejectLane[0] = lane;
+                    return null;
+                }
+
+                // 通道刚刚退役关闭, 按最新的哈希环重新选择
+            }
+        });
+
+        if (null == rejectLane[0]) {
+            return true;
+        }
+
+        LOGGER.warn(
+            "异步通道已满, 拒绝执行, lane = {}, depth = {}, opClazz = {}",
+            rejectLane[0].getLaneName(),
+            rejectLane[0].getDepth(),
+            op.getClass().getName()
+        );
+
+        return false;
+    }
+
+    /**
+     * 把所有通道的统计数据加入列表
+     *
+     * @param statsList 统计数据列表
+     */
+    void collectLaneStats(List<AsyncLaneStats> statsList) {
+        AsyncLaneRing laneRing = _laneRing;
+
+        for (int i = 0; i < laneRing.getLaneCount(); i++) {
+            AsyncLaneStats stats = laneRing.getLane(i).getStats();
+            stats.poolName = _poolName;
+            statsList.add(stats);
+        }
+    }
+
+    /**
+     * 调整通道数量,
+     * 新增的通道立即开始接收新的绑定 Id; 减少的通道先退役, 执行完剩余操作后关闭.
+     * 使用一致性哈希, 只有落在变动通道上的绑定 Id 会换通道,
+     * 并且要等该绑定 Id 在原通道上的操作全部完成后才会换
+     *
+     * @param laneCount 新的通道数量
+     * @return true = 调整成功
+     */
+    boolean resizeLanes(int laneCount) {
+        if (laneCount <= 0) {
+            return false;
+        }
+
+        if (_sharedPool) {
+            LOGGER.warn("使用共享线程池时不支持调整通道数量, pool = {}", _poolName);
+            return false;
+        }
+
+        synchronized (this) {
+            AsyncLaneRing oldRing = _laneRing;
+            int oldLaneCount = oldRing.getLaneCount();
+
+            if (laneCount == oldLaneCount) {
+                return true;
+            }
+
+            AsyncLane[] laneArray = new AsyncLane[laneCount];
+
+            for (int i = 0; i < laneCount; i++) {
+                // 通道 Id 不变, 在环上的位置就不变
+                laneArray[i] = (i < oldLaneCount) ? oldRing.getLane(i) : newPlatformLane(i);
+            }
+
+            _laneRing = new AsyncLaneRing(laneArray);
+
+            for (int i = laneCount; i < oldLaneCount; i++) {
+                oldRing.getLane(i).retire();
+            }
+
+            LOGGER.info("调整异步通道数量, pool = {}, {} => {}", _poolName, oldLaneCount, laneCount);
+        }
+
+        return true;
+    }
+
+    /**
+     * 创建限制并发数量的执行器,
+     * 任务在底层执行器的线程中先取得许可再执行, 超出并发上限时在该线程中等待.
+     * 只用于虚拟线程, 等待中的虚拟线程不占用平台线程
+     *
+     * @param es             底层执行器
+     * @param maxConcurrency 同时执行的任务数量上限
+     * @return 执行器
+     */
+    private static Executor newBoundedExecutor(ExecutorService es, int maxConcurrency) {
+        final Semaphore permits = new Semaphore(Math.max(1, maxConcurrency));
+
+        return (r) -> es.execute(() -> {
+            permits.acquireUninterruptibly();
+
+            try {
+                r.run();
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    /**
+     * 创建工作窃取线程池,
+     * 空闲线程会从其他线程的队列中窃取任务, 热点绑定 Id 不会拖住某个固定线程
+     *
+     * @param nThreads   线程数量
+     * @param namePrefix 线程名称前缀
+     * @return 线程池
+     */
+    private static ExecutorService newWorkStealingPool(int nThreads, String namePrefix) {
+        final AtomicInteger threadId = new AtomicInteger(0);
+
+        return new ForkJoinPool(
+            nThreads,
+            (pool) -> {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                t.setName(namePrefix + threadId.getAndIncrement());
+                return t;
+            },
+            null,
+            // 先进先出, 适合不会再拆分的事件型任务
+            true
+        );
+    }
+
+    /**
+     * 创建虚拟线程执行器,
+     * 每个任务一个虚拟线程. 虚拟线程需要 Java 21,
+     * 为了让默认的 Java 8 构建也能编译, 这里通过反射调用
+     *
+     * @param namePrefix 线程名称前缀
+     * @return 执行器, 当前 JVM 不支持虚拟线程时返回 null
+     */
+    private static ExecutorService newVirtualThreadExecutor(String namePrefix) {
+        try {
+            // Thread.ofVirtual().name(namePrefix, 0).factory()
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClazz = Class.forName("java.lang.Thread$Builder");
+            builder = builderClazz.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            ThreadFactory tf = (ThreadFactory) builderClazz.getMethod("factory").invoke(builder);
+
+            // Executors.newThreadPerTaskExecutor(tf)
+            Method m = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) m.invoke(null, tf);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * 执行中的操作
+     */
+    private static class InFlight {
+        /**
+         * 所在通道
+         */
+        private final AsyncLane _lane;
+
+        /**
+         * 未完成的操作数量
+         */
+        private int _count = 1;
+
+        /**
+         * 类参数构造器
+         *
+         * @param lane 所在通道
+         */
+        InFlight(AsyncLane lane) {
+            _lane = lane;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.tinygame.herostory.async;
+
+import java.util.Arrays;
+
+/**
+ * 异步通道哈希环,
+ * 使用一致性哈希把绑定 Id 映射到通道.
+ * 增加或减少通道时, 只有落在变动通道上的绑定 Id 会换到别的通道, 其余绑定 Id 保持不动.
+ *
+ * 注意: 哈希环创建后不再修改, 调整通道数量时创建新的哈希环
+ */
+final class AsyncLaneRing {
+    /**
+     * 每个通道在环上的虚拟节点数量
+     */
+    private static final int VIRTUAL_NODE_COUNT = 160;
+
+    /**
+     * 通道数组, 下标就是通道 Id
+     */
+    private final AsyncLane[] _laneArray;
+
+    /**
+     * 虚拟节点哈希值数组, 从小到大排序
+     */
+    private final int[] _nodeHashArray;
+
+    /**
+     * 虚拟节点对应的通道数组, 与哈希值数组一一对应
+     */
+    private final AsyncLane[] _nodeLaneArray;
+
+    /**
+     * 类参数构造器
+     *
+     * @param laneArray 通道数组, 下标就是通道 Id
+     */
+    AsyncLaneRing(AsyncLane[] laneArray) {
+        if (null == laneArray ||
+            laneArray.length <= 0) {
+            throw new IllegalArgumentException("laneArray is empty");
+        }
+
+        _laneArray = laneArray.clone();
+
+        // 虚拟节点: 高 32 位为哈希值, 低 32 位为通道 Id, 排序后哈希值相同时按通道 Id 排列
+        long[] nodeArray = new long[_laneArray.length * VIRTUAL_NODE_COUNT];
+        int n = 0;
+
+        for (int laneId = 0; laneId < _laneArray.length; laneId++) {
+            for (int i = 0; i < VIRTUAL_NODE_COUNT; i++) {
+                // 通道 Id 不变, 节点位置就不变
+                int nodeHash = mix(laneId * VIRTUAL_NODE_COUNT + i + 0x5bd1e995);
+                nodeArray[n++] = ((long) nodeHash << 32) | laneId;
+            }
+        }
+
+        Arrays.sort(nodeArray);
+
+        _nodeHashArray = new int[nodeArray.length];
+        _nodeLaneArray = new AsyncLane[nodeArray.length];
+
+        for (int i = 0; i < nodeArray.length; i++) {
+            _nodeHashArray[i] = (int) (nodeArray[i] >> 32);
+            _nodeLaneArray[i] = _laneArray[(int) nodeArray[i]];
+        }
+    }
+
+    /**
+     * 获取通道数量
+     *
+     * @return 通道数量
+     */
+    int getLaneCount() {
+        return _laneArray.length;
+    }
+
+    /**
+     * 根据通道 Id 获取通道
+     *
+     * @param laneId 通道 Id
+     * @return 通道
+     */
+    AsyncLane getLane(int laneId) {
+        return _laneArray[laneId];
+    }
+
+    /**
+     * 根据绑定 Id 选择通道,
+     * 顺时针方向第一个虚拟节点所属的通道
+     *
+     * @param bindId 绑定 Id
+     * @return 通道
+     */
+    AsyncLane select(int bindId) {
+        int keyHash = mix(bindId);
+        int index = Arrays.binarySearch(_nodeHashArray, keyHash);
+
+        if (index < 0) {
+            // 没有找到时返回的是 -( 插入位置 ) - 1
+            index = -index - 1;
+        }
+
+        if (index >= _nodeHashArray.length) {
+            // 绕回环的起点
+            index = 0;
+        }
+
+        return _nodeLaneArray[index];
+    }
+
+    /**
+     * 打散哈希值 ( MurmurHash3 的 fmix32 ),
+     * 使连续的绑定 Id 在环上均匀分布
+     *
+     * @param h 原始值
+     * @return 哈希值
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,76 @@
+package org.tinygame.herostory.async;
+
+/**
+ * 异步通道统计数据快照
+ */
+public class AsyncLaneStats {
+    /**
+     * 所属通道池名称
+     */
+    public String poolName;
+
+    /**
+     * 通道名称
+     */
+    public String laneName;
+
+    /**
+     * 容量, 排队和正在执行的操作总数上限
+     */
+    public int capacity;
+
+    /**
+     * 当前深度, 排队和正在执行的操作总数
+     */
+    public int depth;
+
+    /**
+     * 已接受的操作数量
+     */
+    public long acceptedCount;
+
+    /**
+     * 被拒绝的操作数量
+     */
+    public long rejectedCount;
+
+    /**
+     * 已执行完的操作数量
+     */
+    public long completedCount;
+
+    /**
+     * 累计排队时间 ( 纳秒 )
+     */
+    public long totalWaitNanos;
+
+    /**
+     * 最大排队时间 ( 纳秒 )
+     */
+    public long maxWaitNanos;
+
+    /**
+     * 累计执行时间 ( 纳秒 )
+     */
+    public long totalExecNanos;
+
+    /**
+     * 最大执行时间 ( 纳秒 )
+     */
+    public long maxExecNanos;
+
+    @Override
+    public String toString() {
+        long n = Math.max(1, completedCount);
+
+        return laneName +
+            " { depth = " + depth + " / " + capacity +
+            ", accepted = " + acceptedCount +
+            ", rejected = " + rejectedCount +
+            ", completed = " + completedCount +
+            ", avgWaitMicros = " + (totalWaitNanos / n / 1000) +
+            ", maxWaitMicros = " + (maxWaitNanos / 1000) +
+            ", avgExecMicros = " + (totalExecNanos / n / 1000) +
+            ", maxExecMicros = " + (maxExecNanos / 1000) + " }";
+    }
+}
@@ -1,35 +1,136 @@
 package org.tinygame.herostory.async;
 
-import org.tinygame.herostory.MainMsgProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tinygame.herostory.util.ConfigUtil;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
- * 异步操作处理器
+ * 异步操作处理器,
+ * 声明了依赖的操作在该依赖的隔离通道池 ( 配置 async.bulkheads ) 中执行, 其他操作在默认通道池中执行.
+ * 通道数量可以在运行时通过 JMX ( org.tinygame.herostory:type=AsyncOperationProcessor ) 调整
  */
-public final class AsyncOperationProcessor {
+public final class AsyncOperationProcessor implements AsyncOperationProcessorMBean {
+    /**
+     * 日志对象
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncOperationProcessor.class);
+
     /**
      * 单例对象
      */
     private static final AsyncOperationProcessor _instance = new AsyncOperationProcessor();
 
     /**
-     * 创建单线程数组
+     * 默认通道池, 执行没有声明依赖或者依赖没有单独隔离的操作
+     */
+    private final AsyncLanePool _defaultPool;
+
+    /**
+     * 依赖名称 -> 隔离通道池字典 ( 舱壁 ),
+     * 创建后不再修改, 一个依赖变慢只会占满自己的通道, 不影响其他依赖和默认通道池
+     */
+    private final Map<String, AsyncLanePool> _bulkheadMap;
+
+    /**
+     * 默认超时时间 ( 毫秒 ), 0 = 不超时
+     */
+    private final long _defaultTimeoutMillis;
+
+    /**
+     * 操作标识 -> 正在执行的共享操作字典
      */
-    private final ExecutorService[] _esArray = new ExecutorService[8];
+    private final ConcurrentHashMap<Object, CompletableFuture<?>> _singleFlightMap = new ConcurrentHashMap<>();
 
     /**
      * 私有化类默认构造器
      */
     private AsyncOperationProcessor() {
-        for (int i = 0; i < _esArray.length; i++) {
-            final String threadName = "AsyncOperationProcessor[ " + i + " ]";
-            _esArray[i] = Executors.newSingleThreadExecutor((r) -> {
-                Thread t = new Thread(r);
-                t.setName(threadName);
-                return t;
-            });
+        final String threadMode = ConfigUtil.getString("async.threadMode", "auto");
+        final int laneCount = ConfigUtil.getInt("async.laneCount", 8);
+        final int laneCapacity = ConfigUtil.getInt("async.laneCapacity", 1024);
+        final int stealThreads = ConfigUtil.getInt("async.stealThreads", 0);
+
+        _defaultTimeoutMillis = Math.max(0, ConfigUtil.getLong("async.timeoutMillis", 3000));
+        _defaultPool = new AsyncLanePool("AsyncOperationProcessor", threadMode, laneCount, laneCapacity, stealThreads);
+
+        Map<String, AsyncLanePool> bulkheadMap = new HashMap<>();
+
+        for (String dependency : ConfigUtil.getString("async.bulkheads", "").split(",")) {
+            dependency = dependency.trim();
+
+            if (dependency.isEmpty() ||
+                bulkheadMap.containsKey(dependency)) {
+                continue;
+            }
+
+            // 每个依赖可以单独配置通道数量 ( 即并发上限 ) 和容量, 没有配置时与默认通道池相同
+            String prefix = "async.bulkhead." + dependency + ".";
+
+            bulkheadMap.put(dependency, new AsyncLanePool(
+                "AsyncOperationProcessor-" + dependency,
+                threadMode,
+                ConfigUtil.getInt(prefix + "laneCount", laneCount),
+                ConfigUtil.getInt(prefix + "laneCapacity", laneCapacity),
+                ConfigUtil.getInt(prefix + "stealThreads", stealThreads)
+            ));
+        }
+
+        _bulkheadMap = Collections.unmodifiableMap(bulkheadMap);
+
+        registerMBean();
+
+        // 定期把通道统计数据写入日志, 0 = 不写
+        final long statsLogSeconds = ConfigUtil.getLong("async.statsLogSeconds", 60);
+
+        if (statsLogSeconds > 0) {
+            AsyncTimer.scheduleAtFixedRate(this::logLaneStats, statsLogSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 获取依赖对应的通道池
+     *
+     * @param dependency 依赖名称, 可以为 null
+     * @return 通道池, 依赖没有单独隔离时返回默认通道池
+     */
+    private AsyncLanePool getPool(String dependency) {
+        if (null == dependency) {
+            return _defaultPool;
+        }
+
+        AsyncLanePool pool = _bulkheadMap.get(dependency);
+        return (null == pool) ? _defaultPool : pool;
+    }
+
+    /**
+     * 注册 JMX 管理接口
+     */
+    private void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                this, new ObjectName("org.tinygame.herostory:type=AsyncOperationProcessor")
+            );
+        } catch (Exception e) {
+            // 记录错误日志
+            LOGGER.error(e.getMessage(), e);
         }
     }
 
@@ -41,22 +142,527 @@ public final class AsyncOperationProcessor {
     }
 
     /**
-     * 执行异步操作
+     * 获取默认超时时间
+     *
+     * @return 默认超时时间 ( 毫秒 ), 0 = 不超时
+     */
+    public long getDefaultTimeoutMillis() {
+        return _defaultTimeoutMillis;
+    }
+
+    /**
+     * 执行异步操作,
+     * 通道已满时拒绝执行, 并回到主线程执行拒绝逻辑;
+     * 执行失败, 超时, 被取消或者依赖的熔断器已打开时, 回到主线程执行失败逻辑.
+     * 超时或被取消时 doAsync 可能还在执行, 要等它返回后才回到主线程,
+     * 主线程中的回调不会与 doAsync 同时读写操作对象的字段.
+     *
+     * 注意: 这是旧接口 IAsyncOperation 的适配, 新代码可以直接使用 supplyAsync 组合异步操作
+     *
+     * @param op 异步操作
+     * @return true = 已接受, false = 被拒绝或熔断
      */
-    public void process(IAsyncOperation op) {
+    public boolean process(IAsyncOperation op) {
         if (null == op) {
-            return;
+            return false;
+        }
+
+        long timeoutMillis = op.getTimeoutMillis();
+
+        if (0 == timeoutMillis) {
+            timeoutMillis = _defaultTimeoutMillis;
+        }
+
+        // 注意: 要在调用方 ( 分片线程 ) 中求值, 回调才会回到发起操作的分片
+        final Executor mainExecutor = MainThreadExecutor.getInstance();
+        final OpGate gate = new OpGate();
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        boolean accepted = supplyInto(op.getBindId(), () -> {
+            if (!gate.enter()) {
+                // 开始之前已经超时或被取消, 结果会被忽略
+                throw new CancellationException("异步操作已结束");
+            }
+
+            try {
+                if (op.isCancelled()) {
+                    throw new CancellationException("异步操作已取消");
+                }
+
+                // 执行异步操作
+                op.doAsync();
+                return null;
+            } finally {
+                gate.exit();
+            }
+        }, future, op, op.getDependency(), timeoutMillis);
+
+        // 回到主线程执行完成逻辑, 拒绝逻辑或失败逻辑,
+        // doAsync 还在执行时等它返回
+        future.whenComplete((v, ex) -> gate.close(() -> mainExecutor.execute(() -> {
+            if (null == ex) {
+                op.doFinish();
+            } else if (isRejected(ex)) {
+                op.doReject();
+            } else {
+                Throwable cause = unwrap(ex);
+
+                if (cause instanceof TimeoutException ||
+                    cause instanceof CancellationException ||
+                    cause instanceof CircuitBreakerOpenException) {
+                    LOGGER.warn("异步操作失败, opClazz = {}, cause = {}", op.getClass().getName(), cause.getMessage());
+                } else {
+                    // 记录错误日志
+                    LOGGER.error(cause.getMessage(), cause);
+                }
+
+                op.doFail(cause);
+            }
+        })));
+
+        return accepted;
+    }
+
+    /**
+     * 异步执行并返回结果,
+     * 绑定 Id 相同的操作按提交顺序执行.
+     * 通道已满时返回的 future 以 RejectedExecutionException 异常完成.
+     *
+     * 注意: future 在异步线程中完成, 需要回到主线程时请使用 MainThreadExecutor, 例如:
+     * supplyAsync(bindId, ...).thenAcceptAsync(callback, MainThreadExecutor.getInstance()),
+     * MainThreadExecutor.getInstance() 要在分片线程中求值, 完成逻辑才会回到发起操作的分片
+     *
+     * @param bindId   绑定 Id
+     * @param supplier 异步操作
+     * @param <T>      结果类型
+     * @return future
+     */
+    public <T> CompletableFuture<T> supplyAsync(int bindId, Supplier<T> supplier) {
+        return supplyAsync(bindId, null, 0, supplier);
+    }
+
+    /**
+     * 异步执行并返回结果, 带依赖和超时.
+     * 依赖的熔断器已打开时不会排队, future 立即以 CircuitBreakerOpenException 异常完成;
+     * 超时后 future 以 TimeoutException 异常完成, 还没开始的操作不再执行, 正在执行的操作会被中断.
+     * future 被取消 ( cancel ) 时同样处理
+     *
+     * @param bindId        绑定 Id
+     * @param dependency    依赖名称, null = 默认通道池, 不使用熔断器
+     * @param timeoutMillis 超时时间 ( 毫秒 ), 从提交开始计算, 包括排队时间, 小于等于 0 = 不超时
+     * @param supplier      异步操作
+     * @param <T>           结果类型
+     * @return future
+     */
+    public <T> CompletableFuture<T> supplyAsync(int bindId, String dependency, long timeoutMillis, Supplier<T> supplier) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        if (null == supplier) {
+            future.completeExceptionally(new NullPointerException("supplier is null"));
+        } else {
+            supplyInto(bindId, supplier, future, supplier, dependency, timeoutMillis);
+        }
+
+        return future;
+    }
+
+    /**
+     * 异步执行, 没有返回结果
+     *
+     * @param bindId 绑定 Id
+     * @param r      异步操作
+     * @return future
+     */
+    public CompletableFuture<Void> runAsync(int bindId, Runnable r) {
+        if (null == r) {
+            return supplyAsync(bindId, null);
+        }
+
+        return supplyAsync(bindId, () -> {
+            r.run();
+            return null;
+        });
+    }
+
+    /**
+     * 异步执行, 没有返回结果, 带依赖和超时
+     *
+     * @param bindId        绑定 Id
+     * @param dependency    依赖名称, null = 默认通道池, 不使用熔断器
+     * @param timeoutMillis 超时时间 ( 毫秒 ), 小于等于 0 = 不超时
+     * @param r             异步操作
+     * @return future
+     */
+    public CompletableFuture<Void> runAsync(int bindId, String dependency, long timeoutMillis, Runnable r) {
+        if (null == r) {
+            return supplyAsync(bindId, dependency, timeoutMillis, null);
+        }
+
+        return supplyAsync(bindId, dependency, timeoutMillis, () -> {
+            r.run();
+            return null;
+        });
+    }
+
+    /**
+     * 异步执行并共享结果,
+     * 操作标识相同的操作在执行期间只执行一次, 期间的所有调用方都得到这一次执行的结果.
+     * 执行完成后的调用会重新执行.
+     *
+     * 注意: 结果对象由所有调用方共享, 调用方不应修改它
+     *
+     * @param flightKey 操作标识
+     * @param bindId    绑定 Id
+     * @param supplier  异步操作
+     * @param <T>       结果类型
+     * @return future, 每个调用方各自一个, 单独设置超时或取消不影响其他调用方
+     */
+    public <T> CompletableFuture<T> singleFlight(Object flightKey, int bindId, Supplier<T> supplier) {
+        return singleFlight(flightKey, bindId, null, 0, supplier);
+    }
+
+    /**
+     * 异步执行并共享结果, 带依赖和超时,
+     * 超时时间作用于共享的那一次执行, 超时后所有调用方一起失败
+     *
+     * @param flightKey     操作标识
+     * @param bindId        绑定 Id
+     * @param dependency    依赖名称, null = 不使用熔断器
+     * @param timeoutMillis 超时时间 ( 毫秒 ), 小于等于 0 = 不超时
+     * @param supplier      异步操作
+     * @param <T>           结果类型
+     * @return future, 每个调用方各自一个
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> singleFlight(Object flightKey, int bindId, String dependency, long timeoutMillis, Supplier<T> supplier) {
+        if (null == flightKey) {
+            return supplyAsync(bindId, dependency, timeoutMillis, supplier);
+        }
+
+        CompletableFuture<T> newFuture = new CompletableFuture<>();
+        CompletableFuture<T> sharedFuture;
+
+        while (true) {
+            sharedFuture = (CompletableFuture<T>) _singleFlightMap.putIfAbsent(flightKey, newFuture);
+
+            if (null == sharedFuture ||
+                !sharedFuture.isDone()) {
+                break;
+            }
+
+            // 上一次执行已经完成, 但还没来得及从字典中移除 ( 调用方的回调可能先于移除执行 ),
+            // 不能再共享它的结果, 移除后重试
+            _singleFlightMap.remove(flightKey, sharedFuture);
+        }
+
+        if (null == sharedFuture) {
+            // 第一个调用方, 真正执行
+            sharedFuture = newFuture;
+            sharedFuture.whenComplete((v, ex) -> _singleFlightMap.remove(flightKey, newFuture));
+
+            if (null == supplier) {
+                newFuture.completeExceptionally(new NullPointerException("supplier is null"));
+            } else {
+                supplyInto(bindId, supplier, newFuture, supplier, dependency, timeoutMillis);
+            }
+        }
+
+        return sharedFuture.thenApply(Function.identity());
+    }
+
+    /**
+     * 在异步线程中执行操作, 并用结果完成 future
+     *
+     * @param bindId        绑定 Id
+     * @param supplier      异步操作
+     * @param future        future
+     * @param op            原始操作, 用于记录日志
+     * @param dependency    依赖名称, null = 不使用熔断器
+     * @param timeoutMillis 超时时间 ( 毫秒 ), 小于等于 0 = 不超时
+     * @param <T>           结果类型
+     * @return true = 已接受, false = 被拒绝或熔断
+     */
+    private <T> boolean supplyInto(
+        int bindId, Supplier<T> supplier, CompletableFuture<T> future, Object op, String dependency, long timeoutMillis) {
+        final CircuitBreaker breaker = (null == dependency) ? null : CircuitBreaker.of(dependency);
+
+        if (null != breaker) {
+            if (!breaker.allowRequest()) {
+                // 依赖不可用, 直接失败, 不占用异步通道
+                future.completeExceptionally(new CircuitBreakerOpenException(dependency));
+                return false;
+            }
+
+            future.whenComplete((v, ex) -> {
+                if (null == ex) {
+                    breaker.onSuccess();
+                } else if (isRejected(ex) ||
+                    unwrap(ex) instanceof CancellationException) {
+                    breaker.onIgnore();
+                } else {
+                    breaker.onFailure();
+                }
+            });
         }
 
-        int bindId = Math.abs(op.getBindId());
-        int esIndex = bindId % _esArray.length;
+        final Runner runner = new Runner();
+        boolean accepted = getPool(dependency).execute(bindId, () -> {
+            // 注意: 先登记执行线程再检查状态,
+            // 否则在检查之后, 登记之前超时的操作不会被中断
+            runner.begin();
+
+            try {
+                if (future.isDone()) {
+                    // 已经超时或被取消, 不再执行
+                    return;
+                }
+
+                future.complete(supplier.get());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            } finally {
+                runner.end();
+            }
+        }, op);
+
+        if (!accepted) {
+            future.completeExceptionally(new RejectedExecutionException("异步通道已满"));
+            return false;
+        }
 
-        _esArray[esIndex].submit(() -> {
-            // 执行异步操作
-            op.doAsync();
-            // 回到主线程执行完成逻辑
-            MainMsgProcessor.getInstance().process(op::doFinish);
+        AsyncTimeout.orTimeout(future, timeoutMillis, TimeUnit.MILLISECONDS);
+
+        // 超时或被取消时中断正在执行的操作,
+        // 能响应中断的阻塞调用会立即返回, 把通道让给后面的操作
+        future.whenComplete((v, ex) -> {
+            if (null != ex) {
+                runner.interrupt();
+            }
         });
+
+        return true;
+    }
+
+    /**
+     * 异常是否表示被拒绝执行
+     *
+     * @param ex 异常
+     * @return true = 被拒绝
+     */
+    static boolean isRejected(Throwable ex) {
+        return unwrap(ex) instanceof RejectedExecutionException;
+    }
+
+    /**
+     * 去掉 CompletionException 包装
+     *
+     * @param ex 异常
+     * @return 原始异常
+     */
+    static Throwable unwrap(Throwable ex) {
+        if (ex instanceof CompletionException &&
+            null != ex.getCause()) {
+            ex = ex.getCause();
+        }
+
+        return ex;
+    }
+
+    /**
+     * 获取所有通道的统计数据, 默认通道池在前, 隔离通道池在后
+     *
+     * @return 统计数据列表
+     */
+    public List<AsyncLaneStats> getLaneStatsList() {
+        List<AsyncLaneStats> statsList = new ArrayList<>();
+        _defaultPool.collectLaneStats(statsList);
+
+        for (AsyncLanePool pool : _bulkheadMap.values()) {
+            pool.collectLaneStats(statsList);
+        }
+
+        return statsList;
+    }
+
+    @Override
+    public String[] getLaneStats() {
+        List<AsyncLaneStats> statsList = getLaneStatsList();
+        String[] statsArray = new String[statsList.size()];
+
+        for (int i = 0; i < statsArray.length; i++) {
+            statsArray[i] = statsList.get(i).toString();
+        }
+
+        return statsArray;
+    }
+
+    /**
+     * 把通道统计数据写入日志, 没有接受过操作的空闲通道不写
+     */
+    private void logLaneStats() {
+        // 注意: 周期任务抛出异常后不会再执行,
+        // 所以这里必须捕获所有异常
+        try {
+            for (AsyncLaneStats stats : getLaneStatsList()) {
+                if (stats.acceptedCount > 0 ||
+                    stats.depth > 0) {
+                    LOGGER.info("异步通道统计: {}", stats);
+                }
+            }
+        } catch (Exception e) {
+            // 记录错误日志
+            LOGGER.error(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public int getLaneCount() {
+        return _defaultPool.getLaneCount();
+    }
+
+    @Override
+    public void setLaneCount(int laneCount) {
+        resizeLanes(laneCount);
+    }
+
+    @Override
+    public int getLaneCount(String dependency) {
+        return getPool(dependency).getLaneCount();
+    }
+
+    @Override
+    public boolean resizeLanes(String dependency, int laneCount) {
+        AsyncLanePool pool = getPool(dependency);
+
+        if (null != dependency &&
+            _defaultPool == pool) {
+            LOGGER.warn("依赖没有单独隔离, dependency = {}", dependency);
+            return false;
+        }
+
+        return pool.resizeLanes(laneCount);
+    }
+
+    /**
+     * 调整默认通道池的通道数量,
+     * 新增的通道立即开始接收新的绑定 Id; 减少的通道先退役, 执行完剩余操作后关闭.
+     * 使用一致性哈希, 只有落在变动通道上的绑定 Id 会换通道,
+     * 并且要等该绑定 Id 在原通道上的操作全部完成后才会换
+     *
+     * @param laneCount 新的通道数量
+     * @return true = 调整成功
+     */
+    public boolean resizeLanes(int laneCount) {
+        return _defaultPool.resizeLanes(laneCount);
+    }
+
+    /**
+     * 旧接口操作的回调闸门,
+     * 超时或被取消时 doAsync 可能还在异步线程中执行,
+     * 主线程中的回调要等它返回后才能执行, 否则会读到写了一半的字段
+     */
+    private static class OpGate {
+        /**
+         * doAsync 是否正在执行
+         */
+        private boolean _running = false;
+
+        /**
+         * 是否已经有结果
+         */
+        private boolean _closed = false;
+
+        /**
+         * 等待 doAsync 返回后执行的回调
+         */
+        private Runnable _pendingCallback = null;
+
+        /**
+         * 开始执行 doAsync
+         *
+         * @return true = 可以执行, false = 已经有结果 ( 超时或被取消 ), 不再执行
+         */
+        synchronized boolean enter() {
+            if (_closed) {
+                return false;
+            }
+
+            _running = true;
+            return true;
+        }
+
+        /**
+         * doAsync 返回, 执行等待中的回调
+         */
+        void exit() {
+            Runnable callback;
+
+            synchronized (this) {
+                _running = false;
+                callback = _pendingCallback;
+                _pendingCallback = null;
+            }
+
+            if (null != callback) {
+                callback.run();
+            }
+        }
+
+        /**
+         * 已经有结果, doAsync 没有在执行时立即执行回调, 否则等 doAsync 返回后执行
+         *
+         * @param callback 回调
+         */
+        void close(Runnable callback) {
+            synchronized (this) {
+                _closed = true;
+
+                if (_running) {
+                    _pendingCallback = callback;
+                    return;
+                }
+            }
+
+            callback.run();
+        }
     }
 
+    /**
+     * 操作的执行线程, 用于超时或取消时中断
+     */
+    private static class Runner {
+        /**
+         * 执行线程, 没有在执行时为 null
+         */
+        private Thread _thread = null;
+
+        /**
+         * 开始执行
+         */
+        synchronized void begin() {
+            _thread = Thread.currentThread();
+        }
+
+        /**
+         * 执行结束
+         */
+        void end() {
+            synchronized (this) {
+                _thread = null;
+            }
+
+            // 注意: 线程会被后面的操作复用,
+            // 中断只在 _thread 不为 null 时发出, 所以这里清除的一定是本次操作的中断标记
+            Thread.interrupted();
+        }
+
+        /**
+         * 中断正在执行的操作
+         */
+        synchronized void interrupt() {
+            if (null != _thread) {
+                _thread.interrupt();
+            }
+        }
+    }
 }
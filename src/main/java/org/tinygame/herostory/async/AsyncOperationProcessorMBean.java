@@ -0,0 +1,45 @@
+package org.tinygame.herostory.async;
+
+/**
+ * 异步操作处理器 JMX 管理接口
+ */
+public interface AsyncOperationProcessorMBean {
+    /**
+     * 获取通道数量
+     *
+     * @return 通道数量
+     */
+    int getLaneCount();
+
+    /**
+     * 设置通道数量
+     *
+     * @param laneCount 通道数量
+     */
+    void setLaneCount(int laneCount);
+
+    /**
+     * 获取依赖对应通道池的通道数量
+     *
+     * @param dependency 依赖名称
+     * @return 通道数量, 依赖没有单独隔离时返回默认通道池的通道数量
+     */
+    int getLaneCount(String dependency);
+
+    /**
+     * 调整依赖对应通道池的通道数量
+     *
+     * @param dependency 依赖名称
+     * @param laneCount  通道数量
+     * @return true = 调整成功
+     */
+    boolean resizeLanes(String dependency, int laneCount);
+
+    /**
+     * 获取所有通道的统计数据,
+     * 每个通道一行: 当前深度 / 容量, 接受, 拒绝, 完成数量, 平均和最大排队时间, 平均和最大执行时间
+     *
+     * @return 统计数据
+     */
+    String[] getLaneStats();
+}
@@ -0,0 +1,45 @@
+package org.tinygame.herostory.async;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 异步操作超时,
+ * 相当于 Java 9 的 CompletableFuture.orTimeout, 默认的 Java 8 构建也可以使用
+ */
+public final class AsyncTimeout {
+    /**
+     * 私有化类默认构造器
+     */
+    private AsyncTimeout() {}
+
+    /**
+     * 设置超时,
+     * 超过指定时间仍未完成时, future 以 TimeoutException 异常完成
+     *
+     * @param future  future
+     * @param timeout 超时时间
+     * @param unit    时间单位
+     * @param <T>     结果类型
+     * @return 原来的 future
+     */
+    public static <T> CompletableFuture<T> orTimeout(CompletableFuture<T> future, long timeout, TimeUnit unit) {
+        if (null == future ||
+            null == unit ||
+            timeout <= 0 ||
+            future.isDone()) {
+            return future;
+        }
+
+        ScheduledFuture<?> timer = AsyncTimer.schedule(
+            () -> future.completeExceptionally(new TimeoutException("异步操作超时")),
+            timeout,
+            unit
+        );
+
+        future.whenComplete((v, ex) -> timer.cancel(false));
+        return future;
+    }
+}
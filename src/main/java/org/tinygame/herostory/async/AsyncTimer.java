@@ -0,0 +1,60 @@
+package org.tinygame.herostory.async;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 异步定时器,
+ * 只负责在到期时触发很短的逻辑 ( 完成 future, 提交任务等 ), 不执行阻塞操作
+ */
+final class AsyncTimer {
+    /**
+     * 定时线程池
+     */
+    private static final ScheduledThreadPoolExecutor TIMER;
+
+    static {
+        TIMER = new ScheduledThreadPoolExecutor(1, (r) -> {
+            Thread t = Executors.defaultThreadFactory().newThread(r);
+            t.setName("AsyncTimer");
+            t.setDaemon(true);
+            return t;
+        });
+
+        // 提前取消的定时任务立即移除
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * 私有化类默认构造器
+     */
+    private AsyncTimer() {}
+
+    /**
+     * 计划定时任务
+     *
+     * @param r     任务
+     * @param delay 延迟时间
+     * @param unit  时间单位
+     * @return 定时任务
+     */
+    static ScheduledFuture<?> schedule(Runnable r, long delay, TimeUnit unit) {
+        return TIMER.schedule(r, delay, unit);
+    }
+
+    /**
+     * 计划周期任务
+     *
+     * 注意: 任务抛出异常后不会再执行, 需要自己捕获异常
+     *
+     * @param r      任务
+     * @param period 周期
+     * @param unit   时间单位
+     * @return 定时任务
+     */
+    static ScheduledFuture<?> scheduleAtFixedRate(Runnable r, long period, TimeUnit unit) {
+        return TIMER.scheduleAtFixedRate(r, period, period, unit);
+    }
+}
@@ -0,0 +1,205 @@
+package org.tinygame.herostory.async;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tinygame.herostory.util.ConfigUtil;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 熔断器, 每个依赖 ( 例如 mysql, redis ) 一个.
+ * 连续失败达到阈值后打开, 打开期间直接拒绝, 不再占用异步通道;
+ * 打开一段时间后半开, 放行一个试探操作, 成功则关闭, 失败则再次打开
+ */
+public final class CircuitBreaker {
+    /**
+     * 日志对象
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    /**
+     * 状态: 关闭
+     */
+    public static final int STATE_CLOSED = 0;
+
+    /**
+     * 状态: 打开
+     */
+    public static final int STATE_OPEN = 1;
+
+    /**
+     * 状态: 半开
+     */
+    public static final int STATE_HALF_OPEN = 2;
+
+    /**
+     * 依赖名称 -> 熔断器字典
+     */
+    private static final ConcurrentHashMap<String, CircuitBreaker> _breakerMap = new ConcurrentHashMap<>();
+
+    /**
+     * 依赖名称
+     */
+    private final String _name;
+
+    /**
+     * 连续失败多少次后打开
+     */
+    private final int _failureThreshold;
+
+    /**
+     * 打开持续时间 ( 毫秒 )
+     */
+    private final long _openMillis;
+
+    /**
+     * 当前状态
+     */
+    private int _state = STATE_CLOSED;
+
+    /**
+     * 连续失败次数
+     */
+    private int _failureCount = 0;
+
+    /**
+     * 打开状态的结束时间 ( 毫秒 )
+     */
+    private long _openUntil = 0;
+
+    /**
+     * 半开状态下是否已经放行了试探操作
+     */
+    private boolean _trialInFlight = false;
+
+    /**
+     * 类参数构造器
+     *
+     * @param name             依赖名称
+     * @param failureThreshold 连续失败多少次后打开
+     * @param openMillis       打开持续时间 ( 毫秒 )
+     */
+    CircuitBreaker(String name, int failureThreshold, long openMillis) {
+        _name = name;
+        _failureThreshold = Math.max(1, failureThreshold);
+        _openMillis = Math.max(0, openMillis);
+    }
+
+    /**
+     * 获取依赖对应的熔断器, 不存在时按配置创建
+     *
+     * @param name 依赖名称
+     * @return 熔断器
+     */
+    public static CircuitBreaker of(String name) {
+        if (null == name) {
+            throw new IllegalArgumentException("name is null");
+        }
+
+        return _breakerMap.computeIfAbsent(name, (k) -> new CircuitBreaker(
+            k,
+            ConfigUtil.getInt("breaker.failureThreshold", 5),
+            ConfigUtil.getLong("breaker.openMillis", 5000)
+        ));
+    }
+
+    /**
+     * 获取所有已创建的熔断器
+     *
+     * @return 熔断器集合
+     */
+    public static Collection<CircuitBreaker> listAll() {
+        return Collections.unmodifiableCollection(_breakerMap.values());
+    }
+
+    /**
+     * 获取依赖名称
+     *
+     * @return 依赖名称
+     */
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * 获取当前状态
+     *
+     * @return 状态, STATE_CLOSED / STATE_OPEN / STATE_HALF_OPEN
+     */
+    public synchronized int getState() {
+        return _state;
+    }
+
+    /**
+     * 是否允许执行,
+     * 允许执行之后必须调用 onSuccess / onFailure / onIgnore 之一报告结果
+     *
+     * @return true = 允许执行
+     */
+    public synchronized boolean allowRequest() {
+        if (STATE_CLOSED == _state) {
+            return true;
+        }
+
+        if (STATE_OPEN == _state) {
+            if (System.currentTimeMillis() < _openUntil) {
+                return false;
+            }
+
+            // 打开时间已到, 放行一个试探操作
+            _state = STATE_HALF_OPEN;
+            _trialInFlight = false;
+        }
+
+        if (_trialInFlight) {
+            return false;
+        }
+
+        _trialInFlight = true;
+        return true;
+    }
+
+    /**
+     * 报告执行成功
+     */
+    public synchronized void onSuccess() {
+        if (STATE_CLOSED != _state) {
+            LOGGER.info("熔断器关闭, name = {}", _name);
+        }
+
+        _state = STATE_CLOSED;
+        _failureCount = 0;
+        _trialInFlight = false;
+    }
+
+    /**
+     * 报告执行失败 ( 异常或超时 )
+     */
+    public synchronized void onFailure() {
+        if (STATE_OPEN == _state) {
+            // 打开之前已经放行的操作, 不延长打开时间
+            return;
+        }
+
+        if (STATE_HALF_OPEN == _state ||
+            ++_failureCount >= _failureThreshold) {
+            _state = STATE_OPEN;
+            _openUntil = System.currentTimeMillis() + _openMillis;
+            _trialInFlight = false;
+
+            LOGGER.warn("熔断器打开, name = {}, failureCount = {}, openMillis = {}", _name, _failureCount, _openMillis);
+        }
+    }
+
+    /**
+     * 报告没有结果 ( 被拒绝或被取消 ),
+     * 不计入成功或失败, 只释放半开状态下的试探名额
+     */
+    public synchronized void onIgnore() {
+        if (STATE_HALF_OPEN == _state) {
+            _trialInFlight = false;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package org.tinygame.herostory.async;
+
+/**
+ * 熔断器打开异常,
+ * 依赖不可用期间的异步操作不会执行, 直接以该异常完成
+ */
+public class CircuitBreakerOpenException extends RuntimeException {
+    /**
+     * 序列化版本号
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 类参数构造器
+     *
+     * @param dependency 依赖名称
+     */
+    public CircuitBreakerOpenException(String dependency) {
+        super("依赖不可用, 熔断器已打开, dependency = " + dependency);
+    }
+}
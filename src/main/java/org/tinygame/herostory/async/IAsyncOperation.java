@@ -12,6 +12,37 @@ public interface IAsyncOperation {
     default int getBindId() {
         return 0;
     }
+
+    /**
+     * 获取依赖名称 ( 例如 mysql, redis ),
+     * 不为 null 时受该依赖的熔断器保护
+     *
+     * @return 依赖名称
+     */
+    default String getDependency() {
+        return null;
+    }
+
+    /**
+     * 获取超时时间 ( 毫秒 ),
+     * 从提交开始计算, 包括排队时间. 0 = 使用配置 async.timeoutMillis, 小于 0 = 不超时
+     *
+     * @return 超时时间
+     */
+    default long getTimeoutMillis() {
+        return 0;
+    }
+
+    /**
+     * 是否已经取消,
+     * 在异步线程中开始执行之前检查, 已取消的操作不再执行 doAsync
+     *
+     * @return true = 已取消
+     */
+    default boolean isCancelled() {
+        return false;
+    }
+
     /**
      * 执行异步操作
      */
@@ -23,4 +54,25 @@ public interface IAsyncOperation {
     default void doFinish() {
 
     }
+
+    /**
+     * 执行拒绝逻辑,
+     * 异步通道已满时在主线程中调用, 此时 doAsync 没有执行.
+     * 默认按没有结果处理, 直接执行完成逻辑, 以便调用方能给客户端回复
+     */
+    default void doReject() {
+        doFinish();
+    }
+
+    /**
+     * 执行失败逻辑,
+     * doAsync 抛出异常, 超时, 被取消或者依赖的熔断器已打开时在主线程中调用.
+     * 超时或被取消时如果 doAsync 已经开始, 要等它返回后才调用, 不会与 doAsync 同时执行.
+     * 默认直接执行完成逻辑, 以便调用方能给客户端回复
+     *
+     * @param cause 失败原因
+     */
+    default void doFail(Throwable cause) {
+        doFinish();
+    }
 }
@@ -0,0 +1,124 @@
+package org.tinygame.herostory.async;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * 按键串行执行器,
+ * 键相同的任务按提交顺序逐个执行, 键不同的任务可以并发执行.
+ * 每个键只在有任务时才占用一个队列, 队列为空时立即移除,
+ * 适合搭配虚拟线程或工作窃取线程池这类共享的底层执行器.
+ * 一个键连续执行若干个任务后会把剩余任务重新提交给底层执行器, 以免热点键长时间占住一个线程
+ */
+final class KeySerialExecutor {
+    /**
+     * 日志对象
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(KeySerialExecutor.class);
+
+    /**
+     * 一个键每轮最多连续执行的任务数量
+     */
+    private static final int MAX_RUN_PER_TURN = 16;
+
+    /**
+     * 底层执行器
+     */
+    private final Executor _executor;
+
+    /**
+     * 键 -> 任务队列字典
+     */
+    private final ConcurrentHashMap<Integer, Queue<Runnable>> _queueMap = new ConcurrentHashMap<>();
+
+    /**
+     * 类参数构造器
+     *
+     * @param executor 底层执行器
+     */
+    KeySerialExecutor(Executor executor) {
+        if (null == executor) {
+            throw new IllegalArgumentException("executor is null");
+        }
+
+        _executor = executor;
+    }
+
+    /**
+     * 提交任务
+     *
+     * @param key  键
+     * @param task 任务
+     */
+    void execute(int key, Runnable task) {
+        if (null == task) {
+            return;
+        }
+
+        // 是否需要启动新的执行者
+        final boolean[] startRunner = { false };
+
+        // 注意: 队列的读写都在 compute 中完成,
+        // 这样 "队列为空时移除" 与 "新任务入队" 不会交错
+        _queueMap.compute(key, (k, queue) -> {
+            if (null == queue) {
+                queue = new ArrayDeque<>();
+                startRunner[0] = true;
+            }
+
+            queue.offer(task);
+            return queue;
+        });
+
+        if (startRunner[0]) {
+            _executor.execute(() -> runAll(key));
+        }
+    }
+
+    /**
+     * 依次执行键对应的任务, 直到队列为空或者本轮执行次数达到上限
+     *
+     * @param key 键
+     */
+    private void runAll(int key) {
+        for (int runCount = 0; ; runCount++) {
+            // 取出下一个任务, 队列已空时移除队列
+            final Runnable[] nextTask = { null };
+
+            _queueMap.computeIfPresent(key, (k, queue) -> {
+                // 任务执行完之后才出队,
+                // 所以队列不为空就说明已经有执行者, 提交时不需要再启动新的执行者
+                nextTask[0] = queue.peek();
+                return (null == nextTask[0]) ? null : queue;
+            });
+
+            if (null == nextTask[0]) {
+                return;
+            }
+
+            if (runCount >= MAX_RUN_PER_TURN) {
+                // 让出线程, 剩余任务重新排队, 队列不为空所以不会有其他执行者
+                _executor.execute(() -> runAll(key));
+                return;
+            }
+
+            try {
+                nextTask[0].run();
+            } catch (Throwable t) {
+                // 注意: 必须捕获所有异常, 否则执行者退出后队列不为空,
+                // 这个键再也不会启动新的执行者
+                LOGGER.error(t.getMessage(), t);
+            } finally {
+                _queueMap.computeIfPresent(key, (k, queue) -> {
+                    queue.poll();
+                    return queue;
+                });
+            }
+        }
+    }
+}
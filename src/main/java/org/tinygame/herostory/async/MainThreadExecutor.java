@@ -0,0 +1,131 @@
+package org.tinygame.herostory.async;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tinygame.herostory.MainMsgProcessor;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 主线程执行器,
+ * 用于把异步操作的完成逻辑送回发起操作的那个主线程分片.
+ * 每个分片一个执行器, 多个完成逻辑先放入队列, 再合并成一次 MainMsgProcessor 提交, 在分片线程中依次执行
+ */
+public final class MainThreadExecutor implements Executor {
+    /**
+     * 日志对象
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(MainThreadExecutor.class);
+
+    /**
+     * 每次提交最多执行的任务数量, 超出的部分再提交一次, 以免长时间占住主线程
+     */
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    /**
+     * 分片执行器数组, 按分片索引存放
+     */
+    private static final MainThreadExecutor[] _instanceArray = newInstanceArray();
+
+    /**
+     * 分片索引
+     */
+    private final int _shardIndex;
+
+    /**
+     * 任务队列
+     */
+    private final Queue<Runnable> _taskQueue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 是否已经提交过批量执行任务
+     */
+    private final AtomicBoolean _scheduled = new AtomicBoolean(false);
+
+    /**
+     * 批量执行任务
+     */
+    private final Runnable _drainTask = this::drain;
+
+    /**
+     * 私有化类参数构造器
+     *
+     * @param shardIndex 分片索引
+     */
+    private MainThreadExecutor(int shardIndex) {
+        _shardIndex = shardIndex;
+    }
+
+    /**
+     * 创建分片执行器数组
+     *
+     * @return 分片执行器数组
+     */
+    private static MainThreadExecutor[] newInstanceArray() {
+        MainThreadExecutor[] instanceArray = new MainThreadExecutor[MainMsgProcessor.getInstance().getShardCount()];
+
+        for (int i = 0; i < instanceArray.length; i++) {
+            instanceArray[i] = new MainThreadExecutor(i);
+        }
+
+        return instanceArray;
+    }
+
+    /**
+     * 获取当前分片的执行器,
+     * 必须在发起异步操作时 ( 即还在分片线程中时 ) 获取, 完成逻辑才能回到同一个分片.
+     * 不在分片线程中调用时返回第一个分片的执行器
+     *
+     * @return 执行器
+     */
+    public static MainThreadExecutor getInstance() {
+        return _instanceArray[Math.max(0, MainMsgProcessor.currShardIndex())];
+    }
+
+    @Override
+    public void execute(Runnable r) {
+        if (null == r) {
+            return;
+        }
+
+        _taskQueue.offer(r);
+
+        if (_scheduled.compareAndSet(false, true)) {
+            // 分片索引作为分片键, 回到本执行器对应的分片
+            MainMsgProcessor.getInstance().process(_shardIndex, _drainTask);
+        }
+    }
+
+    /**
+     * 在主线程中依次执行队列中的任务
+     */
+    private void drain() {
+        // 注意: 先清除标记再取任务,
+        // 这样在取任务之后入队的任务一定会触发新的提交, 不会遗漏
+        _scheduled.set(false);
+
+        for (int i = 0; i < MAX_BATCH_SIZE; i++) {
+            Runnable r = _taskQueue.poll();
+
+            if (null == r) {
+                return;
+            }
+
+            try {
+                r.run();
+            } catch (Exception e) {
+                // 记录错误日志
+                LOGGER.error(e.getMessage(), e);
+            }
+        }
+
+        if (!_taskQueue.isEmpty() &&
+            _scheduled.compareAndSet(false, true)) {
+            // 还有剩余任务, 再提交一次
+            MainMsgProcessor.getInstance().process(_shardIndex, _drainTask);
+        }
+    }
+}
@@ -3,10 +3,11 @@ package org.tinygame.herostory.cmdhandler;
 import com.google.protobuf.GeneratedMessageV3;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.tinygame.herostory.util.PackageUtil;
+import org.tinygame.herostory.GameMsgRecognizer;
+import org.tinygame.herostory.msg.GameMsgProtocol;
 
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -25,66 +26,79 @@ public final class CmdHandlerFactory {
      */
     private static final Map<Class<?>, ICmdHandler<? extends GeneratedMessageV3>> _handlerMap = new HashMap<>();
 
+    /**
+     * 消息编号 -> 命令处理器数组,
+     * 热路径上按消息编号直接取处理器, 不需要哈希查找
+     */
+    private static ICmdHandler<?>[] _handlerArray = new ICmdHandler<?>[0];
+
+    /**
+     * 客户端协议中已经定义, 但服务器暂不处理的命令
+     */
+    private static final Set<GameMsgProtocol.MsgCode> UNHANDLED_CMD_SET = EnumSet.of(
+        GameMsgProtocol.MsgCode.USER_STOP_CMD,
+        GameMsgProtocol.MsgCode.SELECT_HERO_CMD
+    );
+
     /**
      * 私有化类默认构造器
      */
     private CmdHandlerFactory() {}
 
     /**
-     * 初始化
+     * 初始化,
+     * 命令处理器注册表由 RegistryProcessor 在编译时生成, 启动时不再扫描类路径.
+     * 如果有命令 ( 以 _CMD 结尾的消息编号 ) 没有对应的命令处理器, 直接抛出异常
+     *
+     * 注意: 需要在 GameMsgRecognizer.init 之后调用, 否则无法按消息编号建立索引
      */
     public static void init() {
         LOGGER.info("==== 完成命令与处理器的关联 ====");
-        // 获取包名称
-        final String packageName = CmdHandlerFactory.class.getPackage().getName();
-        // 获取 ICmdHandler 所有的实现类
-        Set<Class<?>> classSet = PackageUtil.listSubClazz(packageName, true, ICmdHandler.class);
-
-        for (Class<?> handlerClazz : classSet) {
-            if (null == handlerClazz ||
-                    0 != (handlerClazz.getModifiers() & Modifier.ABSTRACT)) {
-                continue;
-            }
 
-            // 获取方法数组
-            Method[] methodArray = handlerClazz.getDeclaredMethods();
-            // 消息类型
-            Class<?> msgClazz = null;
+        _handlerMap.clear();
+        _handlerArray = new ICmdHandler<?>[0];
+        CmdHandlerRegistry.registerAll();
 
-            for (Method currMethod : methodArray) {
-                if (null == currMethod ||
-                !currMethod.getName().equals("handle")) {
-                    continue;
-                }
+        for (GameMsgProtocol.MsgCode msgCode : GameMsgProtocol.MsgCode.values()) {
+            if (GameMsgProtocol.MsgCode.UNRECOGNIZED == msgCode ||
+                !msgCode.name().endsWith("_CMD") ||
+                UNHANDLED_CMD_SET.contains(msgCode)) {
+                continue;
+            }
 
-                // 获取函数参数类型数组
-                Class<?>[] paramTypeArray = currMethod.getParameterTypes();
+            if (null == create(msgCode.getNumber())) {
+                throw new IllegalStateException("命令没有对应的命令处理器, msgCode = " + msgCode);
+            }
+        }
+    }
 
-                if (paramTypeArray.length < 2 ||
-                        paramTypeArray[1] == GeneratedMessageV3.class ||
-                        !GeneratedMessageV3.class.isAssignableFrom(paramTypeArray[1])) {
-                    continue;
-                }
+    /**
+     * 注册命令处理器, 由编译时生成的注册表调用
+     *
+     * @param msgClazz   消息类
+     * @param cmdHandler 命令处理器
+     */
+    static void register(Class<?> msgClazz, ICmdHandler<? extends GeneratedMessageV3> cmdHandler) {
+        if (null == msgClazz ||
+            null == cmdHandler) {
+            return;
+        }
 
-                msgClazz = paramTypeArray[1];
-                break;
-            }
+        LOGGER.info("{} <==> {}", msgClazz.getName(), cmdHandler.getClass().getSimpleName());
+        _handlerMap.put(msgClazz, cmdHandler);
 
-            if (null == msgClazz) {
-                continue;
-            }
+        int msgCode = GameMsgRecognizer.getMsgCodeByClazz(msgClazz);
 
-            try {
-                // 创建命令处理器实例
-                ICmdHandler<?> newHandler = (ICmdHandler<?>) handlerClazz.newInstance();
+        if (msgCode < 0) {
+            LOGGER.warn("消息类没有对应的消息编号, 只能按类查找, msgClazz = {}", msgClazz.getName());
+            return;
+        }
 
-                LOGGER.info("{} <==> {}", msgClazz.getName(), handlerClazz.getSimpleName());
-                _handlerMap.put(msgClazz, newHandler);
-            } catch (Exception e) {
-                // 记录错误日志
-                LOGGER.error(e.getMessage(), e);
-            }
+        if (msgCode >= _handlerArray.length) {
+            _handlerArray = Arrays.copyOf(_handlerArray, msgCode + 1);
         }
+
+        _handlerArray[msgCode] = cmdHandler;
     }
 
     /**
@@ -99,4 +113,19 @@ public final class CmdHandlerFactory {
         }
         return _handlerMap.get(msgClazz);
     }
+
+    /**
+     * 根据消息编号创建命令处理器
+     *
+     * @param msgCode 消息编号
+     * @return 命令处理器
+     */
+    public static ICmdHandler<? extends GeneratedMessageV3> create(int msgCode) {
+        if (msgCode < 0 ||
+            msgCode >= _handlerArray.length) {
+            return null;
+        }
+
+        return _handlerArray[msgCode];
+    }
 }
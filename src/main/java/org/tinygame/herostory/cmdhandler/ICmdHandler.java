@@ -2,6 +2,7 @@ package org.tinygame.herostory.cmdhandler;
 
 import com.google.protobuf.GeneratedMessageV3;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.AttributeKey;
 
 /**
  * 命令处理器接口
@@ -16,4 +17,30 @@ public interface ICmdHandler<TCmd extends GeneratedMessageV3> {
      * @param cmd
      */
     void handle(ChannelHandlerContext ctx, TCmd cmd);
+
+    /**
+     * 获取分片键,
+     * 分片键相同的命令总是在同一个线程中按顺序处理.
+     * 默认按已登录的用户 Id 分片, 一个玩家的数据只在他自己的分片中修改;
+     * 登录之前还没有用户 Id, 按客户端信道分片.
+     * 需要修改其他玩家数据的命令仍按发起者分片, 保证发起者自己的命令按顺序执行,
+     * 修改其他玩家数据的部分通过 MainMsgProcessor.process(被修改玩家的 Id, r) 交给该玩家的分片
+     *
+     * @param ctx
+     * @param cmd
+     * @return 分片键
+     */
+    default int getShardKey(ChannelHandlerContext ctx, TCmd cmd) {
+        if (null == ctx) {
+            return 0;
+        }
+
+        Integer userId = (Integer) ctx.channel().attr(AttributeKey.valueOf("userId")).get();
+
+        if (null != userId) {
+            return userId;
+        }
+
+        return ctx.channel().id().hashCode();
+    }
 }
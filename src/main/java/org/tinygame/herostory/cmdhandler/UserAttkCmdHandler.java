@@ -5,6 +5,8 @@ import io.netty.util.AttributeKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.tinygame.herostory.Broadcaster;
+import org.tinygame.herostory.MainMsgProcessor;
+import org.tinygame.herostory.async.AsyncOperationProcessor;
 import org.tinygame.herostory.model.User;
 import org.tinygame.herostory.model.UserManager;
 import org.tinygame.herostory.mq.MqProducer;
@@ -33,7 +35,26 @@ public class UserAttkCmdHandler implements ICmdHandler<GameMsgProtocol.UserAttkC
         }
 
         // 获取目标用户 Id
-        int targetUserId = cmd.getTargetUserId();
+        final int targetUserId = cmd.getTargetUserId();
+
+        // 注意: 攻击命令按攻击者分片, 与攻击者自己的移动等命令按顺序执行;
+        // 目标用户的血量只在目标用户自己的分片中修改, 不在同一分片时交给目标用户的分片
+        MainMsgProcessor mainProcessor = MainMsgProcessor.getInstance();
+
+        if (mainProcessor.inShard(targetUserId)) {
+            subtractHp(attkUserId, targetUserId);
+        } else {
+            mainProcessor.process(targetUserId, () -> subtractHp(attkUserId, targetUserId));
+        }
+    }
+
+    /**
+     * 目标用户减血, 只能在目标用户所在的分片中调用
+     *
+     * @param attkUserId   攻击者 Id
+     * @param targetUserId 目标用户 Id
+     */
+    private static void subtractHp(int attkUserId, int targetUserId) {
         // 获取目标用户
         User targetUser = UserManager.getByUserId(targetUserId);
 
@@ -60,7 +81,18 @@ public class UserAttkCmdHandler implements ICmdHandler<GameMsgProtocol.UserAttkC
             newMsg.winnerId = attkUserId;
             newMsg.loserId = targetUserId;
 
-            MqProducer.sendMsg("herostory_victor", newMsg);
+            // 在 mq 隔离通道池中发送, 不阻塞主线程.
+            // 注意: 被拒绝, 熔断或超时时消息没有发出, 排行榜不会更新, 必须记录下来
+            AsyncOperationProcessor processor = AsyncOperationProcessor.getInstance();
+            processor.runAsync(
+                attkUserId, "mq", processor.getDefaultTimeoutMillis(), () -> MqProducer.sendMsg("herostory_victor", newMsg)
+            ).whenComplete((v, ex) -> {
+                if (null != ex) {
+                    LOGGER.error(
+                        "发送胜利消息失败, winnerId = {}, loserId = {}", newMsg.winnerId, newMsg.loserId, ex
+                    );
+                }
+            });
         }
     }
 
@@ -3,6 +3,7 @@ package org.tinygame.herostory.cmdhandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.util.AttributeKey;
 import org.tinygame.herostory.Broadcaster;
+import org.tinygame.herostory.model.MoveState;
 import org.tinygame.herostory.model.User;
 import org.tinygame.herostory.model.UserManager;
 import org.tinygame.herostory.msg.GameMsgProtocol;
@@ -29,11 +30,14 @@ public class UserMovoToCmdHandler implements ICmdHandler<GameMsgProtocol.UserMov
         }
 
         long nowTime = System.currentTimeMillis();
-        existUser.moveState.fromPosX = cmd.getMoveFromPosX();
-        existUser.moveState.fromPosY = cmd.getMoveFromPosY();
-        existUser.moveState.toPosX= cmd.getMoveToPosX();
-        existUser.moveState.toPosY= cmd.getMoveToPosY();
-        existUser.moveState.startTime = nowTime;
+        // 创建新的移动状态再整体替换, 其他分片 ( 例如 WhoElseIsHere ) 可能正在读取旧的状态
+        MoveState newMoveState = new MoveState();
+        newMoveState.fromPosX = cmd.getMoveFromPosX();
+        newMoveState.fromPosY = cmd.getMoveFromPosY();
+        newMoveState.toPosX = cmd.getMoveToPosX();
+        newMoveState.toPosY = cmd.getMoveToPosY();
+        newMoveState.startTime = nowTime;
+        existUser.moveState = newMoveState;
 
 
         GameMsgProtocol.UserMoveToResult.Builder resultBuilder = GameMsgProtocol.UserMoveToResult.newBuilder();
@@ -27,14 +27,16 @@ public class WhoElseIsHereCmdHandler implements ICmdHandler<GameMsgProtocol.WhoE
             userInfoBuilder.setUserId(currUser.userId);
             userInfoBuilder.setHeroAvatar(currUser.heroAvatar);
 
-            // 构建移动状态
+            // 构建移动状态,
+            // 用户可能在其他分片中, 先取一次引用, 保证各个字段来自同一个状态
+            MoveState currMoveState = currUser.moveState;
             GameMsgProtocol.WhoElseIsHereResult.UserInfo.MoveState.Builder
                     mvStateBuilder = GameMsgProtocol.WhoElseIsHereResult.UserInfo.MoveState.newBuilder();
-            mvStateBuilder.setFromPosX(currUser.moveState.fromPosX);
-            mvStateBuilder.setFromPosY(currUser.moveState.fromPosY);
-            mvStateBuilder.setToPosX(currUser.moveState.toPosX);
-            mvStateBuilder.setToPosY(currUser.moveState.toPosY);
-            mvStateBuilder.setStartTime(currUser.moveState.startTime);
+            mvStateBuilder.setFromPosX(currMoveState.fromPosX);
+            mvStateBuilder.setFromPosY(currMoveState.fromPosY);
+            mvStateBuilder.setToPosX(currMoveState.toPosX);
+            mvStateBuilder.setToPosY(currMoveState.toPosY);
+            mvStateBuilder.setStartTime(currMoveState.startTime);
             userInfoBuilder.setMoveState(mvStateBuilder);
 
             resultBuilder.addUserInfo(userInfoBuilder);
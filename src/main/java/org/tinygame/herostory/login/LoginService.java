@@ -5,14 +5,21 @@ import org.apache.ibatis.session.SqlSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.tinygame.herostory.MySqlSessionFactory;
+import org.tinygame.herostory.async.AsyncBatcher;
 import org.tinygame.herostory.async.AsyncOperationProcessor;
-import org.tinygame.herostory.async.IAsyncOperation;
+import org.tinygame.herostory.async.AsyncTimeout;
+import org.tinygame.herostory.async.MainThreadExecutor;
 import org.tinygame.herostory.login.db.IUserDao;
 import org.tinygame.herostory.login.db.UserEntity;
-import org.tinygame.herostory.model.User;
+import org.tinygame.herostory.util.ConfigUtil;
 import org.tinygame.herostory.util.RedisUtil;
 import redis.clients.jedis.Jedis;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 /**
@@ -29,6 +36,17 @@ public final class LoginService {
      */
     private static final LoginService _instance = new LoginService();
 
+    /**
+     * 用户实体批量加载器
+     */
+    private final AsyncBatcher<String, UserEntity> _userEntityBatcher = new AsyncBatcher<>(
+        "LoginService.listByUserName",
+        "mysql",
+        ConfigUtil.getLong("batch.windowMicros", 0),
+        ConfigUtil.getInt("batch.maxSize", 128),
+        LoginService::listByUserName
+    );
+
     /**
      * 私有化类默认构造器
      */
@@ -42,11 +60,14 @@ public final class LoginService {
     }
 
     /**
-     * 用户登录
+     * 用户登录,
+     * 同时登录的多个用户合并成一次批量查询, 然后在各自的异步通道中校验密码或创建用户,
+     * 最后回到主线程执行回调.
+     * 整个登录过程受 async.timeoutMillis 限制, 超时或者 MySQL 熔断时立即以失败回调
      *
-     * @param userName
-     * @param password
-     * @return
+     * @param userName 用户名称
+     * @param password 用户密码
+     * @param callback 回调函数, 登录失败时参数为 null
      */
     public void userLogin(String userName, String password, Function<UserEntity, Void> callback) {
         if (null == userName ||
@@ -54,114 +75,109 @@ public final class LoginService {
             return;
         }
 
-        AsyncGetUserEntity asyncOp = new AsyncGetUserEntity(userName, password) {
-            @Override
-            public int getBindId() {
-                return userName.charAt(userName.length() - 1);
-            }
+        final int bindId = userName.charAt(userName.length() - 1);
+        final AsyncOperationProcessor processor = AsyncOperationProcessor.getInstance();
+        final long timeoutMillis = processor.getDefaultTimeoutMillis();
 
-            @Override
-            public void doFinish() {
-                if (null != callback) {
-                    callback.apply(this.getUserEntity());
+        CompletableFuture<UserEntity> future = _userEntityBatcher.load(userName)
+            .thenCompose((userEntity) -> processor.supplyAsync(
+                bindId, "mysql", timeoutMillis, () -> verifyOrCreate(userEntity, userName, password)
+            ));
+
+        AsyncTimeout.orTimeout(future, timeoutMillis, TimeUnit.MILLISECONDS)
+            .whenCompleteAsync((userEntity, ex) -> {
+                if (null != ex) {
+                    LOGGER.warn("用户登录失败, userName = {}, cause = {}", userName, ex.toString());
                 }
-            }
-        };
-        AsyncOperationProcessor.getInstance().process(asyncOp);
 
+                if (null != callback) {
+                    callback.apply((null == ex) ? userEntity : null);
+                }
+            }, MainThreadExecutor.getInstance());
     }
 
     /**
-     * 更新 Redis 中的用户基本信息
+     * 根据用户名称批量获取用户实体, 由批量加载器调用
      *
-     * @param userEntity 用户实体
+     * @param userNameList 用户名称列表
+     * @return 用户名称 -> 用户实体字典
      */
-    private void updateBasicInfoInRedis(UserEntity userEntity) {
-        if (null == userEntity) {
-            return;
-        }
+    private static Map<String, UserEntity> listByUserName(Collection<String> userNameList) {
+        try (SqlSession mySqlSession = MySqlSessionFactory.openSession()) {
+            // 获取 DAO
+            IUserDao dao = mySqlSession.getMapper(IUserDao.class);
+            Map<String, UserEntity> userEntityMap = new HashMap<>();
 
-        try (Jedis redis = RedisUtil.getJedis()){
-            JSONObject jsonObj = new JSONObject();
-            jsonObj.put("userName", userEntity.userName);
-            jsonObj.put("heroAvatar", userEntity.heroAvatar);
+            for (UserEntity userEntity : dao.listByUserName(userNameList)) {
+                if (null != userEntity) {
+                    userEntityMap.put(userEntity.userName, userEntity);
+                }
+            }
 
-            redis.hset("User_" + userEntity.userId, "BasicInfo", jsonObj.toJSONString());
-        } catch (Exception e) {
-            // 记录错误日志
-            LOGGER.error(e.getMessage(), e);
+            return userEntityMap;
         }
     }
 
     /**
-     * 异步方式获取用户实体
+     * 校验密码, 用户不存在时创建用户
+     *
+     * @param userEntity 批量查询得到的用户实体, 可以为 null
+     * @param userName   用户名称
+     * @param password   用户密码
+     * @return 用户实体, 密码错误时返回 null
      */
-    private class AsyncGetUserEntity implements IAsyncOperation {
-        /**
-         * 用户名称
-         */
-        private final String _userName;
-
-        /**
-         * 用户密码
-         */
-        private final String _password;
-
-        /**
-         * 用户实体
-         */
-        private UserEntity _userEntity;
-
-        /**
-         * 类参数构造器
-         *
-         * @param username
-         * @param password
-         */
-        AsyncGetUserEntity(String username, String password) {
-            _userName = username;
-            _password = password;
-        }
-
-        /**
-         * 获取用户实体
-         *
-         * @return
-         */
-        public UserEntity getUserEntity() {
-            return _userEntity;
-        }
+    private UserEntity verifyOrCreate(UserEntity userEntity, String userName, String password) {
+        LOGGER.info("当前线程 = {}", Thread.currentThread().getName());
 
-
-        @Override
-        public void doAsync() {
-            try (SqlSession mySqlSession = MySqlSessionFactory.openSession()){
+        if (null == userEntity) {
+            try (SqlSession mySqlSession = MySqlSessionFactory.openSession()) {
                 // 获取 DAO
                 IUserDao dao = mySqlSession.getMapper(IUserDao.class);
-                // 获取用户实体
-                UserEntity userEntity = dao.getByUserName(_userName);
 
-                LOGGER.info("当前线程 = {}", Thread.currentThread().getName());
+                // 注意: 批量查询之后, 同名用户可能已经在本通道中被创建,
+                // 所以插入前要再查一次
+                userEntity = dao.getByUserName(userName);
 
-                if (null != userEntity) {
-                    if (!_password.equals(userEntity.password)) {
-                        throw new RuntimeException("密码错误");
-                    }
-                } else {
+                if (null == userEntity) {
                     userEntity = new UserEntity();
-                    userEntity.userName = _userName;
-                    userEntity.password = _password;
+                    userEntity.userName = userName;
+                    userEntity.password = password;
                     userEntity.heroAvatar = "Hero_Shaman";
 
                     dao.insertInto(userEntity);
                 }
-
-                LoginService.getInstance().updateBasicInfoInRedis(userEntity);
-                _userEntity = userEntity;
-            } catch (Exception e) {
-                // 记录错误日志
-                LOGGER.error(e.getMessage(), e);
             }
         }
+
+        if (!password.equals(userEntity.password)) {
+            // 注意: 密码错误不是依赖故障, 不能以异常完成, 否则会计入熔断器的失败次数
+            LOGGER.warn("密码错误, userName = {}", userName);
+            return null;
+        }
+
+        updateBasicInfoInRedis(userEntity);
+        return userEntity;
+    }
+
+    /**
+     * 更新 Redis 中的用户基本信息
+     *
+     * @param userEntity 用户实体
+     */
+    private void updateBasicInfoInRedis(UserEntity userEntity) {
+        if (null == userEntity) {
+            return;
+        }
+
+        try (Jedis redis = RedisUtil.getJedis()){
+            JSONObject jsonObj = new JSONObject();
+            jsonObj.put("userName", userEntity.userName);
+            jsonObj.put("heroAvatar", userEntity.heroAvatar);
+
+            redis.hset("User_" + userEntity.userId, "BasicInfo", jsonObj.toJSONString());
+        } catch (Exception e) {
+            // 记录错误日志
+            LOGGER.error(e.getMessage(), e);
+        }
     }
 }
@@ -1,5 +1,10 @@
 package org.tinygame.herostory.login.db;
 
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Collection;
+import java.util.List;
+
 public interface IUserDao {
     /**
      * 根据用户名称获取实体
@@ -9,6 +14,14 @@ public interface IUserDao {
      */
     UserEntity getByUserName(String userName);
 
+    /**
+     * 根据用户名称批量获取实体
+     *
+     * @param userNameList 用户名称列表
+     * @return 用户实体列表, 不存在的用户没有对应的实体
+     */
+    List<UserEntity> listByUserName(@Param("userNameList") Collection<String> userNameList);
+
     /**
      * 添加用户实体
      *
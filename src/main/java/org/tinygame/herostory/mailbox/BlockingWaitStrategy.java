@@ -0,0 +1,51 @@
+package org.tinygame.herostory.mailbox;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 阻塞等待策略,
+ * 没有消息时挂起消费者线程, 由生产者投递后唤醒, 不占用 CPU
+ */
+public class BlockingWaitStrategy implements IWaitStrategy {
+    /**
+     * 最长挂起时间, 防止丢失唤醒信号时一直挂起
+     */
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * 空转次数
+     */
+    private static final int SPIN_TRIES = 100;
+
+    /**
+     * 消费者线程
+     */
+    private volatile Thread _waiter = null;
+
+    @Override
+    public void idle(int idleCount, BooleanSupplier hasMail) {
+        if (idleCount < SPIN_TRIES) {
+            return;
+        }
+
+        _waiter = Thread.currentThread();
+
+        // 登记之后再检查一次, 避免生产者在登记之前投递了消息
+        if (!hasMail.getAsBoolean()) {
+            LockSupport.parkNanos(this, MAX_PARK_NANOS);
+        }
+
+        _waiter = null;
+    }
+
+    @Override
+    public void signal() {
+        Thread waiter = _waiter;
+
+        if (null != waiter) {
+            LockSupport.unpark(waiter);
+        }
+    }
+}
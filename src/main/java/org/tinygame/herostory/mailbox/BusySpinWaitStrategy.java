@@ -0,0 +1,14 @@
+package org.tinygame.herostory.mailbox;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * 忙等待策略,
+ * 消费者线程一直空转, 延迟最低, 但会独占一个 CPU 核
+ */
+public class BusySpinWaitStrategy implements IWaitStrategy {
+    @Override
+    public void idle(int idleCount, BooleanSupplier hasMail) {
+        // 空转, 什么也不做
+    }
+}
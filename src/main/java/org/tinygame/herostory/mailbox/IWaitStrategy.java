@@ -0,0 +1,40 @@
+package org.tinygame.herostory.mailbox;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * 等待策略接口,
+ * 决定邮箱为空时消费者线程如何等待
+ */
+public interface IWaitStrategy {
+    /**
+     * 消费者没有取到消息时调用
+     *
+     * @param idleCount 连续空闲次数, 从 0 开始
+     * @param hasMail   邮箱中是否有消息
+     */
+    void idle(int idleCount, BooleanSupplier hasMail);
+
+    /**
+     * 生产者投递消息后调用,
+     * 用于唤醒正在等待的消费者
+     */
+    default void signal() {
+    }
+
+    /**
+     * 根据名称创建等待策略
+     *
+     * @param name 策略名称: blocking / yielding / busySpin
+     * @return 等待策略
+     */
+    static IWaitStrategy of(String name) {
+        if ("busySpin".equalsIgnoreCase(name)) {
+            return new BusySpinWaitStrategy();
+        } else if ("yielding".equalsIgnoreCase(name)) {
+            return new YieldingWaitStrategy();
+        } else {
+            return new BlockingWaitStrategy();
+        }
+    }
+}
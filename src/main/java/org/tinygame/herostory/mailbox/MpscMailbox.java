@@ -0,0 +1,375 @@
+package org.tinygame.herostory.mailbox;
+
+import com.google.protobuf.GeneratedMessageV3;
+import io.netty.channel.ChannelHandlerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tinygame.herostory.cmdhandler.ICmdHandler;
+import org.tinygame.herostory.metrics.MsgMetrics;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 多生产者单消费者邮箱,
+ * 基于预先分配的环形缓冲区, 投递时只有一次 CAS, 不加锁, 也不为每条消息分配对象.
+ * 生产者是各个 IO 线程, 消费者是邮箱自己的处理线程.
+ * 投递永远不会阻塞生产者: 邮箱已满时命令投递失败, 由调用方决定如何处理;
+ * Runnable ( 异步操作的完成逻辑等 ) 不能丢弃, 放入溢出队列
+ */
+public final class MpscMailbox {
+    /**
+     * 日志对象
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(MpscMailbox.class);
+
+    /**
+     * 邮件槽位数组, 预先分配, 循环使用
+     */
+    private final Mail[] _mailArray;
+
+    /**
+     * 槽位序号数组,
+     * 序号 == 位置 表示槽位可写, 序号 == 位置 + 1 表示槽位可读
+     */
+    private final AtomicLongArray _seqArray;
+
+    /**
+     * 槽位掩码
+     */
+    private final int _mask;
+
+    /**
+     * 下一个写入位置, 多个生产者竞争
+     */
+    private final AtomicLong _tail = new AtomicLong(0);
+
+    /**
+     * 下一个读取位置, 只有消费者访问
+     */
+    private long _head = 0;
+
+    /**
+     * 等待策略
+     */
+    private final IWaitStrategy _waitStrategy;
+
+    /**
+     * 溢出队列, 邮箱已满时存放 Runnable 实例
+     */
+    private final Queue<Runnable> _overflowQueue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 溢出队列中的数量
+     */
+    private final AtomicInteger _overflowCount = new AtomicInteger(0);
+
+    /**
+     * 类参数构造器
+     *
+     * @param capacity     容量, 会向上取整为 2 的幂
+     * @param waitStrategy 等待策略
+     */
+    public MpscMailbox(int capacity, IWaitStrategy waitStrategy) {
+        int realCapacity = 1;
+
+        while (realCapacity < capacity) {
+            realCapacity <<= 1;
+        }
+
+        _mailArray = new Mail[realCapacity];
+        _seqArray = new AtomicLongArray(realCapacity);
+        _mask = realCapacity - 1;
+        _waitStrategy = (null == waitStrategy) ? new BlockingWaitStrategy() : waitStrategy;
+
+        for (int i = 0; i < realCapacity; i++) {
+            _mailArray[i] = new Mail();
+            _seqArray.set(i, i);
+        }
+    }
+
+    /**
+     * 投递命令
+     *
+     * @param cmdHandler  命令处理器
+     * @param ctx         客户端信道上下文
+     * @param msg         命令对象
+     * @param msgCode     消息编号, 用于统计指标
+     * @param enqueueTime 入队时间, 由 MsgMetrics.now() 取得
+     * @return true = 投递成功, false = 邮箱已满
+     */
+    public boolean offer(ICmdHandler<? extends GeneratedMessageV3> cmdHandler, ChannelHandlerContext ctx, Object msg, int msgCode, long enqueueTime) {
+        if (null == cmdHandler || null == ctx || null == msg) {
+            return false;
+        }
+
+        long pos = tryClaim();
+
+        if (pos < 0) {
+            return false;
+        }
+
+        Mail mail = _mailArray[(int) pos & _mask];
+        mail._cmdHandler = cmdHandler;
+        mail._ctx = ctx;
+        mail._msg = msg;
+        mail._msgCode = msgCode;
+        mail._enqueueTime = enqueueTime;
+        publish(pos);
+        return true;
+    }
+
+    /**
+     * 投递 Runnable 实例,
+     * 邮箱已满 ( 或者溢出队列中还有积压 ) 时放入溢出队列, 不会阻塞.
+     *
+     * 注意: 消费者线程自己也可能投递 Runnable, 例如异步操作在提交时就被拒绝,
+     * 如果在这里等待消费者腾出空间就会死锁
+     *
+     * @param r Runnable
+     */
+    public void offer(Runnable r) {
+        if (null == r) {
+            return;
+        }
+
+        long pos = (_overflowCount.get() > 0) ? -1 : tryClaim();
+
+        if (pos < 0) {
+            // 先加计数再入队, 消费者看到计数大于 0 时会一直等到实例出现
+            _overflowCount.incrementAndGet();
+            _overflowQueue.offer(r);
+            _waitStrategy.signal();
+            return;
+        }
+
+        _mailArray[(int) pos & _mask]._r = r;
+        publish(pos);
+    }
+
+    /**
+     * 占用一个可写槽位
+     *
+     * @return 槽位位置, 邮箱已满时返回 -1
+     */
+    private long tryClaim() {
+        while (true) {
+            long pos = _tail.get();
+            long dif = _seqArray.get((int) pos & _mask) - pos;
+
+            if (0 == dif) {
+                if (_tail.compareAndSet(pos, pos + 1)) {
+                    return pos;
+                }
+            } else if (dif < 0) {
+                // 邮箱已满
+                _waitStrategy.signal();
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * 发布槽位, 使消费者可见
+     *
+     * @param pos 槽位位置
+     */
+    private void publish(long pos) {
+        _seqArray.lazySet((int) pos & _mask, pos + 1);
+        _waitStrategy.signal();
+    }
+
+    /**
+     * 邮箱中是否有消息
+     *
+     * @return true = 有消息
+     */
+    public boolean hasMail() {
+        return _seqArray.get((int) _head & _mask) == _head + 1 ||
+            _overflowCount.get() > 0;
+    }
+
+    /**
+     * 获取已投递但尚未处理的消息数量, 只能由消费者线程调用
+     *
+     * @return 消息数量
+     */
+    public int pendingCount() {
+        return (int) Math.max(0, _tail.get() - _head) + _overflowCount.get();
+    }
+
+    /**
+     * 处理邮箱中的消息, 只能由消费者线程调用
+     *
+     * @param limit 最多处理多少条, 小于等于 0 表示不限
+     * @return 实际处理的条数
+     */
+    public int drain(int limit) {
+        int count = 0;
+
+        while (limit <= 0 || count < limit) {
+            int index = (int) _head & _mask;
+
+            if (_seqArray.get(index) == _head + 1) {
+                Mail mail = _mailArray[index];
+
+                try {
+                    mail.run();
+                } catch (Throwable t) {
+                    // 注意: 这里是唯一的消费者线程, 必须捕获所有异常,
+                    // 否则线程退出后邮箱再也不会被处理
+                    LOGGER.error(t.getMessage(), t);
+                } finally {
+                    mail.clear();
+                    _seqArray.lazySet(index, _head + _mailArray.length);
+                    ++_head;
+                    ++count;
+                }
+            } else if (_tail.get() > _head) {
+                // 生产者已占用槽位, 还没来得及发布,
+                // 必须等它发布, 否则溢出队列中投递得更晚的 Runnable 会先执行
+                Thread.yield();
+            } else if (_overflowCount.get() > 0) {
+                // 环形缓冲区已经处理完, 再处理溢出队列
+                Runnable r = _overflowQueue.poll();
+
+                if (null == r) {
+                    // 生产者已加计数, 还没来得及入队
+                    Thread.yield();
+                    continue;
+                }
+
+                _overflowCount.decrementAndGet();
+
+                try {
+                    r.run();
+                } catch (Throwable t) {
+                    // 记录错误日志
+                    LOGGER.error(t.getMessage(), t);
+                } finally {
+                    ++count;
+                }
+            } else {
+                break;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * 启动消费者线程,
+     * 循环处理消息, 邮箱为空时按等待策略等待
+     *
+     * @param threadName 线程名称
+     * @return 消费者线程
+     */
+    public Thread start(String threadName) {
+        Thread t = new Thread(() -> {
+            int idleCount = 0;
+
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    if (drain(0) > 0) {
+                        idleCount = 0;
+                    } else {
+                        _waitStrategy.idle(idleCount, this::hasMail);
+                        idleCount = Math.min(idleCount + 1, Integer.MAX_VALUE - 1);
+                    }
+                } catch (Throwable ex) {
+                    // 记录错误日志, 消费者线程继续运行
+                    LOGGER.error(ex.getMessage(), ex);
+                }
+            }
+        });
+
+        t.setName(threadName);
+        t.start();
+
+        return t;
+    }
+
+    /**
+     * 邮件, 预先分配的可复用槽位
+     */
+    private static class Mail {
+        /**
+         * 命令处理器
+         */
+        private ICmdHandler<? extends GeneratedMessageV3> _cmdHandler;
+
+        /**
+         * 客户端信道上下文
+         */
+        private ChannelHandlerContext _ctx;
+
+        /**
+         * 命令对象
+         */
+        private Object _msg;
+
+        /**
+         * 消息编号
+         */
+        private int _msgCode;
+
+        /**
+         * 入队时间
+         */
+        private long _enqueueTime;
+
+        /**
+         * Runnable 实例
+         */
+        private Runnable _r;
+
+        /**
+         * 执行邮件
+         */
+        void run() {
+            if (null != _r) {
+                _r.run();
+            } else if (null != _cmdHandler) {
+                final long startTime = MsgMetrics.now();
+                boolean success = false;
+                MsgMetrics.recordQueueWait(_msgCode, _enqueueTime, startTime);
+
+                try {
+                    _cmdHandler.handle(_ctx, cast(_msg));
+                    success = true;
+                } finally {
+                    MsgMetrics.recordHandle(_msgCode, startTime, success);
+                }
+            }
+        }
+
+        /**
+         * 清空引用, 便于垃圾回收
+         */
+        void clear() {
+            _cmdHandler = null;
+            _ctx = null;
+            _msg = null;
+            _r = null;
+        }
+    }
+
+    /**
+     * 转型为命令对象
+     *
+     * @param msg     消息对象
+     * @param <TCmd>  指令类型
+     * @return 命令对象
+     */
+    @SuppressWarnings("unchecked")
+    private static <TCmd extends GeneratedMessageV3> TCmd cast(Object msg) {
+        if (null == msg) {
+            return null;
+        } else {
+            return (TCmd) msg;
+        }
+    }
+}
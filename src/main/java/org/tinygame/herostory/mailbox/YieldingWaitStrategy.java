@@ -0,0 +1,21 @@
+package org.tinygame.herostory.mailbox;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * 让步等待策略,
+ * 先空转一段时间, 仍然没有消息时让出 CPU
+ */
+public class YieldingWaitStrategy implements IWaitStrategy {
+    /**
+     * 空转次数
+     */
+    private static final int SPIN_TRIES = 100;
+
+    @Override
+    public void idle(int idleCount, BooleanSupplier hasMail) {
+        if (idleCount >= SPIN_TRIES) {
+            Thread.yield();
+        }
+    }
+}
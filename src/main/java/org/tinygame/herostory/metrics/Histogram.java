@@ -0,0 +1,114 @@
+package org.tinygame.herostory.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 直方图,
+ * 桶的上界在创建时固定, 记录时只做一次线性查找和两次 LongAdder 累加, 不加锁, 也不分配对象
+ */
+public final class Histogram {
+    /**
+     * 耗时桶上界 ( 纳秒 ), 5 微秒 ~ 2.5 秒
+     */
+    static final long[] LATENCY_BOUNDS = {
+        5_000L, 10_000L, 25_000L, 50_000L, 100_000L, 250_000L, 500_000L,
+        1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L,
+        100_000_000L, 250_000_000L, 500_000_000L, 1_000_000_000L, 2_500_000_000L,
+    };
+
+    /**
+     * 数量桶上界
+     */
+    static final long[] COUNT_BOUNDS = {
+        0, 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000,
+    };
+
+    /**
+     * 桶上界 ( 含 ), 升序
+     */
+    private final long[] _boundArray;
+
+    /**
+     * 每个桶的计数, 最后一个桶是 +Inf
+     */
+    private final LongAdder[] _bucketArray;
+
+    /**
+     * 所有记录值之和
+     */
+    private final LongAdder _sum = new LongAdder();
+
+    /**
+     * 类参数构造器
+     *
+     * @param boundArray 桶上界 ( 含 ), 升序
+     */
+    Histogram(long[] boundArray) {
+        _boundArray = boundArray;
+        _bucketArray = new LongAdder[boundArray.length + 1];
+
+        for (int i = 0; i < _bucketArray.length; i++) {
+            _bucketArray[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * 记录一个值
+     *
+     * @param value 值
+     */
+    public void record(long value) {
+        int i = 0;
+
+        while (i < _boundArray.length &&
+            value > _boundArray[i]) {
+            ++i;
+        }
+
+        _bucketArray[i].increment();
+        _sum.add(value);
+    }
+
+    /**
+     * 获取记录次数
+     *
+     * @return 记录次数
+     */
+    public long getCount() {
+        long count = 0;
+
+        for (LongAdder bucket : _bucketArray) {
+            count += bucket.sum();
+        }
+
+        return count;
+    }
+
+    /**
+     * 按 Prometheus 文本格式输出,
+     * 包括累计的 _bucket, _sum 和 _count 三组样本
+     *
+     * @param sb     输出
+     * @param name   指标名称
+     * @param labels 标签, 例如 msg_code="1",msg="USER_ENTRY_CMD", 可以为空字符串
+     * @param scale  输出时的单位换算系数, 例如纳秒换算成秒为 1e-9
+     */
+    void writeTo(StringBuilder sb, String name, String labels, double scale) {
+        // 注意: 各桶依次读取, 期间仍有新的记录, 所以 _count 取累计值, 保证与 +Inf 桶一致
+        long cumulative = 0;
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+
+        for (int i = 0; i < _bucketArray.length; i++) {
+            cumulative += _bucketArray[i].sum();
+            String le = (i < _boundArray.length) ? MetricsExporter.formatDouble(_boundArray[i] * scale) : "+Inf";
+
+            sb.append(name).append("_bucket{").append(prefix).append("le=\"").append(le).append("\"} ")
+                .append(cumulative).append('\n');
+        }
+
+        String braceLabels = labels.isEmpty() ? "" : "{" + labels + "}";
+        sb.append(name).append("_sum").append(braceLabels).append(' ')
+            .append(MetricsExporter.formatDouble(_sum.sum() * scale)).append('\n');
+        sb.append(name).append("_count").append(braceLabels).append(' ').append(cumulative).append('\n');
+    }
+}
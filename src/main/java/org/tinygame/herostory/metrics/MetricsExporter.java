@@ -0,0 +1,175 @@
+package org.tinygame.herostory.metrics;
+
+import org.tinygame.herostory.Broadcaster;
+import org.tinygame.herostory.MainMsgProcessor;
+import org.tinygame.herostory.async.AsyncLaneStats;
+import org.tinygame.herostory.async.AsyncOperationProcessor;
+import org.tinygame.herostory.async.CircuitBreaker;
+
+import java.util.List;
+
+/**
+ * 指标导出器,
+ * 把消息指标, 异步通道, 熔断器和广播的统计数据汇总成 Prometheus 文本格式 ( 0.0.4 )
+ */
+public final class MetricsExporter {
+    /**
+     * 私有化类默认构造器
+     */
+    private MetricsExporter() {}
+
+    /**
+     * 导出所有指标
+     *
+     * @return Prometheus 文本
+     */
+    public static String export() {
+        StringBuilder sb = new StringBuilder(16 * 1024);
+
+        MsgMetrics.writeTo(sb);
+        writeMainMailbox(sb);
+        writeBroadcast(sb);
+        writeAsyncLanes(sb);
+        writeCircuitBreakers(sb);
+
+        return sb.toString();
+    }
+
+    /**
+     * 输出主消息处理器邮箱的统计数据
+     *
+     * @param sb 输出
+     */
+    private static void writeMainMailbox(StringBuilder sb) {
+        writeHeader(sb, "herostory_main_mailbox_overflow_total", "邮箱已满时丢弃的命令数量", "counter");
+        sb.append("herostory_main_mailbox_overflow_total ").append(MainMsgProcessor.getInstance().getOverflowCount()).append('\n');
+    }
+
+    /**
+     * 输出广播的字节数统计
+     *
+     * @param sb 输出
+     */
+    private static void writeBroadcast(StringBuilder sb) {
+        writeHeader(sb, "herostory_broadcast_encoded_bytes_total", "广播消息累计编码字节数", "counter");
+        sb.append("herostory_broadcast_encoded_bytes_total ").append(Broadcaster.getEncodedBytes()).append('\n');
+
+        writeHeader(sb, "herostory_broadcast_queued_bytes_total", "广播消息累计写入字节数 ( 写入时活动的信道, 不代表已发送成功 )", "counter");
+        sb.append("herostory_broadcast_queued_bytes_total ").append(Broadcaster.getQueuedBytes()).append('\n');
+    }
+
+    /**
+     * 输出异步通道的统计数据
+     *
+     * @param sb 输出
+     */
+    private static void writeAsyncLanes(StringBuilder sb) {
+        List<AsyncLaneStats> statsList = AsyncOperationProcessor.getInstance().getLaneStatsList();
+        String[] labelsArray = new String[statsList.size()];
+
+        for (int i = 0; i < labelsArray.length; i++) {
+            AsyncLaneStats stats = statsList.get(i);
+            labelsArray[i] = "{pool=\"" + escape(stats.poolName) + "\",lane=\"" + escape(stats.laneName) + "\"}";
+        }
+
+        writeHeader(sb, "herostory_async_lane_depth", "异步通道中排队和正在执行的操作数量", "gauge");
+
+        for (int i = 0; i < labelsArray.length; i++) {
+            sb.append("herostory_async_lane_depth").append(labelsArray[i]).append(' ').append(statsList.get(i).depth).append('\n');
+        }
+
+        writeHeader(sb, "herostory_async_lane_capacity", "异步通道容量", "gauge");
+
+        for (int i = 0; i < labelsArray.length; i++) {
+            sb.append("herostory_async_lane_capacity").append(labelsArray[i]).append(' ').append(statsList.get(i).capacity).append('\n');
+        }
+
+        writeHeader(sb, "herostory_async_lane_accepted_total", "异步通道已接受的操作数量", "counter");
+
+        for (int i = 0; i < labelsArray.length; i++) {
+            sb.append("herostory_async_lane_accepted_total").append(labelsArray[i]).append(' ').append(statsList.get(i).acceptedCount).append('\n');
+        }
+
+        writeHeader(sb, "herostory_async_lane_rejected_total", "异步通道已满时拒绝的操作数量", "counter");
+
+        for (int i = 0; i < labelsArray.length; i++) {
+            sb.append("herostory_async_lane_rejected_total").append(labelsArray[i]).append(' ').append(statsList.get(i).rejectedCount).append('\n');
+        }
+
+        writeHeader(sb, "herostory_async_lane_completed_total", "异步通道已执行完的操作数量", "counter");
+
+        for (int i = 0; i < labelsArray.length; i++) {
+            sb.append("herostory_async_lane_completed_total").append(labelsArray[i]).append(' ').append(statsList.get(i).completedCount).append('\n');
+        }
+
+        writeHeader(sb, "herostory_async_lane_wait_seconds_total", "异步操作累计排队时间", "counter");
+
+        for (int i = 0; i < labelsArray.length; i++) {
+            sb.append("herostory_async_lane_wait_seconds_total").append(labelsArray[i]).append(' ')
+                .append(formatDouble(statsList.get(i).totalWaitNanos * 1e-9)).append('\n');
+        }
+
+        writeHeader(sb, "herostory_async_lane_exec_seconds_total", "异步操作累计执行时间", "counter");
+
+        for (int i = 0; i < labelsArray.length; i++) {
+            sb.append("herostory_async_lane_exec_seconds_total").append(labelsArray[i]).append(' ')
+                .append(formatDouble(statsList.get(i).totalExecNanos * 1e-9)).append('\n');
+        }
+    }
+
+    /**
+     * 输出熔断器状态
+     *
+     * @param sb 输出
+     */
+    private static void writeCircuitBreakers(StringBuilder sb) {
+        writeHeader(sb, "herostory_circuit_breaker_state", "熔断器状态, 0 = 关闭, 1 = 打开, 2 = 半开", "gauge");
+
+        for (CircuitBreaker breaker : CircuitBreaker.listAll()) {
+            sb.append("herostory_circuit_breaker_state{dependency=\"").append(escape(breaker.getName())).append("\"} ")
+                .append(breaker.getState()).append('\n');
+        }
+    }
+
+    /**
+     * 输出指标的 HELP 和 TYPE 行
+     *
+     * @param sb   输出
+     * @param name 指标名称
+     * @param help 说明
+     * @param type 类型
+     */
+    private static void writeHeader(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * 转义标签值中的反斜杠, 双引号和换行
+     *
+     * @param value 标签值
+     * @return 转义后的标签值
+     */
+    static String escape(String value) {
+        if (null == value) {
+            return "";
+        }
+
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * 格式化浮点数, 整数值不带小数部分
+     *
+     * @param value 值
+     * @return 字符串
+     */
+    static String formatDouble(double value) {
+        if (value == Math.rint(value) &&
+            Math.abs(value) < 1e15) {
+            return String.valueOf((long) value);
+        }
+
+        return String.valueOf(value);
+    }
+}
@@ -0,0 +1,143 @@
+package org.tinygame.herostory.metrics;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+/**
+ * 指标 Http 处理器,
+ * 放在 WebSocket 信道的 HttpObjectAggregator 之后, 与游戏服务共用同一个端口.
+ * 请求路径是指标路径时返回 Prometheus 文本格式的指标, 其他请求 ( 例如 WebSocket 握手 ) 继续向后传递
+ */
+public class MetricsHttpHandler extends ChannelInboundHandlerAdapter {
+    /**
+     * 日志对象
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricsHttpHandler.class);
+
+    /**
+     * Prometheus 文本格式的内容类型
+     */
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * 指标路径
+     */
+    private final String _path;
+
+    /**
+     * 是否只允许本机访问
+     */
+    private final boolean _localOnly;
+
+    /**
+     * 类参数构造器
+     *
+     * @param path      指标路径, 例如 /metrics
+     * @param localOnly 是否只允许本机访问
+     */
+    public MetricsHttpHandler(String path, boolean localOnly) {
+        _path = path;
+        _localOnly = localOnly;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof FullHttpRequest) ||
+            !isMetricsPath(((FullHttpRequest) msg).uri())) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        FullHttpRequest req = (FullHttpRequest) msg;
+
+        try {
+            FullHttpResponse resp;
+
+            if (_localOnly &&
+                !isLocal(ctx.channel().remoteAddress())) {
+                resp = newResponse(ctx, HttpResponseStatus.FORBIDDEN, "forbidden\n");
+            } else if (!HttpMethod.GET.equals(req.method())) {
+                resp = newResponse(ctx, HttpResponseStatus.METHOD_NOT_ALLOWED, "method not allowed\n");
+            } else {
+                resp = newResponse(ctx, HttpResponseStatus.OK, MetricsExporter.export());
+            }
+
+            if (HttpUtil.isKeepAlive(req)) {
+                HttpUtil.setKeepAlive(resp, true);
+                ctx.writeAndFlush(resp);
+            } else {
+                ctx.writeAndFlush(resp).addListener(ChannelFutureListener.CLOSE);
+            }
+        } catch (Exception e) {
+            // 记录错误日志
+            LOGGER.error(e.getMessage(), e);
+            ctx.close();
+        } finally {
+            ReferenceCountUtil.release(req);
+        }
+    }
+
+    /**
+     * 请求地址是否是指标路径, 忽略查询参数
+     *
+     * @param uri 请求地址
+     * @return true = 是指标路径
+     */
+    private boolean isMetricsPath(String uri) {
+        if (null == uri ||
+            !uri.startsWith(_path)) {
+            return false;
+        }
+
+        return uri.length() == _path.length() ||
+            '?' == uri.charAt(_path.length());
+    }
+
+    /**
+     * 是否是本机地址
+     *
+     * @param addr 远端地址
+     * @return true = 本机地址
+     */
+    private static boolean isLocal(SocketAddress addr) {
+        return addr instanceof InetSocketAddress &&
+            null != ((InetSocketAddress) addr).getAddress() &&
+            ((InetSocketAddress) addr).getAddress().isLoopbackAddress();
+    }
+
+    /**
+     * 创建文本响应
+     *
+     * @param ctx    信道处理器上下文
+     * @param status 状态码
+     * @param text   响应内容
+     * @return 响应
+     */
+    private static FullHttpResponse newResponse(ChannelHandlerContext ctx, HttpResponseStatus status, String text) {
+        ByteBuf content = ctx.alloc().buffer();
+        content.writeCharSequence(text, CharsetUtil.UTF_8);
+
+        FullHttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, content);
+        resp.headers().set(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE);
+        HttpUtil.setContentLength(resp, content.readableBytes());
+
+        return resp;
+    }
+}
@@ -0,0 +1,266 @@
+package org.tinygame.herostory.metrics;
+
+import org.tinygame.herostory.msg.GameMsgProtocol;
+import org.tinygame.herostory.util.ConfigUtil;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 消息指标,
+ * 按消息编号统计各阶段的耗时: 解码, 主线程排队, 命令处理, 编码, 以及广播的接收者数量.
+ * 所有统计都按消息编号索引数组, 记录时不加锁, 不装箱, 也不分配对象.
+ *
+ * 用法: 阶段开始时调用 now() 取得开始时间, 阶段结束时把开始时间传给对应的 record 方法.
+ * 关闭指标 ( metrics.enabled=false ) 时 now() 返回 0, record 方法直接返回
+ */
+public final class MsgMetrics {
+    /**
+     * 是否开启
+     */
+    static final boolean ENABLED = ConfigUtil.getBoolean("metrics.enabled", true);
+
+    /**
+     * 消息编号 -> 消息统计数组
+     */
+    private static final MsgStats[] _msgStatsArray;
+
+    static {
+        int maxMsgCode = 0;
+
+        for (GameMsgProtocol.MsgCode msgCode : GameMsgProtocol.MsgCode.values()) {
+            if (GameMsgProtocol.MsgCode.UNRECOGNIZED != msgCode) {
+                maxMsgCode = Math.max(maxMsgCode, msgCode.getNumber());
+            }
+        }
+
+        _msgStatsArray = new MsgStats[maxMsgCode + 1];
+
+        for (GameMsgProtocol.MsgCode msgCode : GameMsgProtocol.MsgCode.values()) {
+            if (GameMsgProtocol.MsgCode.UNRECOGNIZED != msgCode) {
+                _msgStatsArray[msgCode.getNumber()] = new MsgStats(msgCode.getNumber(), msgCode.name());
+            }
+        }
+    }
+
+    /**
+     * 私有化类默认构造器
+     */
+    private MsgMetrics() {}
+
+    /**
+     * 获取当前时间, 作为阶段的开始时间
+     *
+     * @return 当前时间 ( 纳秒 ), 关闭指标时返回 0
+     */
+    public static long now() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /**
+     * 记录解码耗时
+     *
+     * @param msgCode   消息编号
+     * @param startTime 开始时间, 由 now() 取得
+     */
+    public static void recordDecode(int msgCode, long startTime) {
+        MsgStats stats = getMsgStats(msgCode);
+
+        if (null != stats) {
+            stats._decode.record(System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * 记录在主线程队列中的等待时间, 也就是命令处理的开始时间与入队时间之差
+     *
+     * @param msgCode     消息编号
+     * @param enqueueTime 入队时间, 由 now() 取得
+     * @param startTime   开始处理时间, 由 now() 取得
+     */
+    public static void recordQueueWait(int msgCode, long enqueueTime, long startTime) {
+        MsgStats stats = getMsgStats(msgCode);
+
+        if (null != stats) {
+            stats._queueWait.record(startTime - enqueueTime);
+        }
+    }
+
+    /**
+     * 记录命令处理耗时
+     *
+     * @param msgCode   消息编号
+     * @param startTime 开始处理时间, 由 now() 取得
+     * @param success   是否处理成功, false = 抛出了异常
+     */
+    public static void recordHandle(int msgCode, long startTime, boolean success) {
+        MsgStats stats = getMsgStats(msgCode);
+
+        if (null != stats) {
+            stats._handle.record(System.nanoTime() - startTime);
+
+            if (!success) {
+                stats._errorCount.increment();
+            }
+        }
+    }
+
+    /**
+     * 记录编码耗时
+     *
+     * @param msgCode   消息编号
+     * @param startTime 开始时间, 由 now() 取得
+     */
+    public static void recordEncode(int msgCode, long startTime) {
+        MsgStats stats = getMsgStats(msgCode);
+
+        if (null != stats) {
+            stats._encode.record(System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * 记录广播的接收者数量
+     *
+     * @param msgCode      消息编号
+     * @param channelCount 接收者 ( 信道 ) 数量
+     */
+    public static void recordFanOut(int msgCode, int channelCount) {
+        MsgStats stats = getMsgStats(msgCode);
+
+        if (null != stats) {
+            stats._fanOut.record(channelCount);
+        }
+    }
+
+    /**
+     * 获取消息统计
+     *
+     * @param msgCode 消息编号
+     * @return 消息统计, 关闭指标或者消息编号无法识别时返回 null
+     */
+    private static MsgStats getMsgStats(int msgCode) {
+        if (!ENABLED ||
+            msgCode < 0 ||
+            msgCode >= _msgStatsArray.length) {
+            return null;
+        }
+
+        return _msgStatsArray[msgCode];
+    }
+
+    /**
+     * 按 Prometheus 文本格式输出, 只输出有过记录的消息
+     *
+     * @param sb 输出
+     */
+    static void writeTo(StringBuilder sb) {
+        writeHistogram(sb, "herostory_msg_decode_seconds", "消息解码耗时", 0);
+        writeHistogram(sb, "herostory_msg_queue_wait_seconds", "消息在主线程队列中的等待时间", 1);
+        writeHistogram(sb, "herostory_msg_handle_seconds", "命令处理器耗时", 2);
+        writeHistogram(sb, "herostory_msg_encode_seconds", "消息编码耗时", 3);
+        writeHistogram(sb, "herostory_broadcast_fanout", "每次广播的接收者数量", 4);
+
+        sb.append("# HELP herostory_msg_handle_errors_total 命令处理器抛出异常的次数\n");
+        sb.append("# TYPE herostory_msg_handle_errors_total counter\n");
+
+        for (MsgStats stats : _msgStatsArray) {
+            if (null != stats &&
+                stats._handle.getCount() > 0) {
+                sb.append("herostory_msg_handle_errors_total{").append(stats._labels).append("} ")
+                    .append(stats._errorCount.sum()).append('\n');
+            }
+        }
+    }
+
+    /**
+     * 输出所有消息的一组直方图
+     *
+     * @param sb    输出
+     * @param name  指标名称
+     * @param help  说明
+     * @param stage 阶段, 0 = 解码, 1 = 排队, 2 = 处理, 3 = 编码, 4 = 广播接收者数量
+     */
+    private static void writeHistogram(StringBuilder sb, String name, String help, int stage) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" histogram\n");
+
+        for (MsgStats stats : _msgStatsArray) {
+            if (null == stats) {
+                continue;
+            }
+
+            Histogram h = stats.getHistogram(stage);
+
+            if (h.getCount() > 0) {
+                // 耗时从纳秒换算成秒, 数量不换算
+                h.writeTo(sb, name, stats._labels, (4 == stage) ? 1.0 : 1e-9);
+            }
+        }
+    }
+
+    /**
+     * 单个消息编号的统计
+     */
+    private static class MsgStats {
+        /**
+         * Prometheus 标签
+         */
+        private final String _labels;
+
+        /**
+         * 解码耗时
+         */
+        private final Histogram _decode = new Histogram(Histogram.LATENCY_BOUNDS);
+
+        /**
+         * 排队时间
+         */
+        private final Histogram _queueWait = new Histogram(Histogram.LATENCY_BOUNDS);
+
+        /**
+         * 处理耗时
+         */
+        private final Histogram _handle = new Histogram(Histogram.LATENCY_BOUNDS);
+
+        /**
+         * 编码耗时
+         */
+        private final Histogram _encode = new Histogram(Histogram.LATENCY_BOUNDS);
+
+        /**
+         * 广播接收者数量
+         */
+        private final Histogram _fanOut = new Histogram(Histogram.COUNT_BOUNDS);
+
+        /**
+         * 处理异常次数
+         */
+        private final LongAdder _errorCount = new LongAdder();
+
+        /**
+         * 类参数构造器
+         *
+         * @param msgCode 消息编号
+         * @param msgName 消息名称
+         */
+        MsgStats(int msgCode, String msgName) {
+            _labels = "msg_code=\"" + msgCode + "\",msg=\"" + MetricsExporter.escape(msgName) + "\"";
+        }
+
+        /**
+         * 获取阶段对应的直方图
+         *
+         * @param stage 阶段
+         * @return 直方图
+         */
+        Histogram getHistogram(int stage) {
+            switch (stage) {
+                case 0: return _decode;
+                case 1: return _queueWait;
+                case 2: return _handle;
+                case 3: return _encode;
+                default: return _fanOut;
+            }
+        }
+    }
+}
@@ -20,12 +20,14 @@ public class User {
     public String heroAvatar;
 
     /**
-     * 当前血量
+     * 当前血量,
+     * 只在用户自己的分片中修改 ( 攻击命令会把减血交给目标用户的分片 )
      */
     public int currHp;
 
     /**
-     * 移动状态
+     * 移动状态,
+     * 只在用户自己的分片中整体替换, 不修改已发布的对象, 其他分片读到的总是一个完整的状态
      */
-    public final MoveState moveState = new MoveState();
+    public volatile MoveState moveState = new MoveState();
 }
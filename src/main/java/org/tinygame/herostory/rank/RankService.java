@@ -4,12 +4,15 @@ import com.alibaba.fastjson.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.tinygame.herostory.async.AsyncOperationProcessor;
-import org.tinygame.herostory.async.IAsyncOperation;
+import org.tinygame.herostory.async.MainThreadExecutor;
 import org.tinygame.herostory.util.RedisUtil;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.Tuple;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.function.Function;
@@ -52,12 +55,19 @@ public final class RankService {
             return;
         }
 
-        AsyncOperationProcessor.getInstance().process(new AsyncGetRank(){
-            @Override
-            public void doFinish() {
-                callback.apply(this.getRankItemList());
-            }
-        });
+        final AsyncOperationProcessor processor = AsyncOperationProcessor.getInstance();
+
+        // 同时请求排行榜的玩家共享同一次查询,
+        // Redis 超时或熔断时立即以 null 回调
+        processor
+            .singleFlight("RankService.getRank", 0, "redis", processor.getDefaultTimeoutMillis(), RankService::loadRank)
+            .whenCompleteAsync((rankItemList, ex) -> {
+                if (null != ex) {
+                    LOGGER.warn("获取排行榜失败, cause = {}", ex.toString());
+                }
+
+                callback.apply((null == ex) ? rankItemList : null);
+            }, MainThreadExecutor.getInstance());
     }
 
     /**
@@ -90,66 +100,62 @@ public final class RankService {
     }
 
     /**
-     * 异步方式获取排行榜
+     * 从 Redis 中加载排行榜, 在异步线程中执行.
+     * 异常直接抛出, 由熔断器统计
+     *
+     * @return 排名条目列表, 由所有调用方共享, 不可修改
      */
-    private static class AsyncGetRank implements IAsyncOperation {
-        /**
-         * 排名条目列表
-         */
-        private List<RankItem> _rankItemList;
-
-        /**
-         * 获取排名条目列表
-         *
-         * @return 排名条目列表
-         */
-        List<RankItem> getRankItemList() {
-            return _rankItemList;
-        }
+    private static List<RankItem> loadRank() {
+        try (Jedis redis = RedisUtil.getJedis()) {
+            // 获取集合字符串
+            Set<Tuple> valSet = redis.zrevrangeWithScores("Rank", 0, 9);
 
-        @Override
-        public void doAsync() {
-            try (Jedis redis = RedisUtil.getJedis()) {
-                // 获取集合字符串
-                Set<Tuple> valSet = redis.zrevrangeWithScores("Rank", 0, 9);
+            // 用户信息通过管道一次取回, 不再每个排名条目一次往返
+            Pipeline pipeline = redis.pipelined();
+            List<Tuple> tupleList = new ArrayList<>(valSet.size());
+            List<Response<String>> responseList = new ArrayList<>(valSet.size());
 
-                List<RankItem> rankItemList = new ArrayList<>();
-                int i = 0;
+            for (Tuple t : valSet) {
+                if (null == t) {
+                    continue;
+                }
 
-                for (Tuple t : valSet) {
-                    if (null == t) {
-                        continue;
-                    }
+                tupleList.add(t);
+                responseList.add(pipeline.hget("User_" + t.getElement(), "BasicInfo"));
+            }
 
-                    // 获取用户Id
-                    int userId = Integer.parseInt(t.getElement());
+            pipeline.sync();
 
-                    // 获取用户信息
-                    String jsonStr = redis.hget("User_" + userId, "BasicInfo");
+            List<RankItem> rankItemList = new ArrayList<>();
+            int i = 0;
 
-                    if (null == jsonStr) {
-                        continue;
-                    }
+            for (int j = 0; j < tupleList.size(); j++) {
+                Tuple t = tupleList.get(j);
 
-                    // 创建排名条目
-                    RankItem newItem = new RankItem();
-                    newItem.rankId = ++i;
-                    newItem.userId = userId;
-                    newItem.win = (int) t.getScore();
+                // 获取用户Id
+                int userId = Integer.parseInt(t.getElement());
 
-                    JSONObject jsonObj = JSONObject.parseObject(jsonStr);
-                    newItem.userName = jsonObj.getString("userName");
-                    newItem.heroAvatar = jsonObj.getString("heroAvatar");
+                // 获取用户信息
+                String jsonStr = responseList.get(j).get();
 
-                    rankItemList.add(newItem);
+                if (null == jsonStr) {
+                    continue;
                 }
 
-                _rankItemList = rankItemList;
-            } catch (Exception e) {
-                // 记录错误日志
-                LOGGER.error(e.getMessage(), e);
+                // 创建排名条目
+                RankItem newItem = new RankItem();
+                newItem.rankId = ++i;
+                newItem.userId = userId;
+                newItem.win = (int) t.getScore();
+
+                JSONObject jsonObj = JSONObject.parseObject(jsonStr);
+                newItem.userName = jsonObj.getString("userName");
+                newItem.heroAvatar = jsonObj.getString("heroAvatar");
+
+                rankItemList.add(newItem);
             }
+
+            return Collections.unmodifiableList(rankItemList);
         }
     }
-
 }
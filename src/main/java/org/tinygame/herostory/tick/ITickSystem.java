@@ -0,0 +1,17 @@
+package org.tinygame.herostory.tick;
+
+/**
+ * 帧系统接口,
+ * 固定帧率模式下, 每一帧处理完玩家输入之后调用
+ */
+public interface ITickSystem {
+    /**
+     * 执行一帧,
+     * 每个分片每帧调用一次, 在该分片的线程中运行
+     *
+     * @param shardIndex 分片索引
+     * @param tickCount  帧序号, 从 1 开始
+     * @param nowTime    当前时间 ( 毫秒 )
+     */
+    void onTick(int shardIndex, long tickCount, long nowTime);
+}
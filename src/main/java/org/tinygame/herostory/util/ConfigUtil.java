@@ -0,0 +1,140 @@
+package org.tinygame.herostory.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+/**
+ * 配置实用工具类,
+ * 从类路径中的 server.properties 读取配置,
+ * 同名的 JVM 系统属性 ( -Dkey=value ) 优先
+ */
+public final class ConfigUtil {
+    /**
+     * 日志对象
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConfigUtil.class);
+
+    /**
+     * 配置文件名称
+     */
+    private static final String CONFIG_FILE = "server.properties";
+
+    /**
+     * 配置属性
+     */
+    private static final Properties _props = new Properties();
+
+    /**
+     * 私有化类默认构造器
+     */
+    private ConfigUtil() {}
+
+    /**
+     * 初始化
+     */
+    public static void init() {
+        try (InputStream is = ConfigUtil.class.getClassLoader().getResourceAsStream(CONFIG_FILE)) {
+            if (null == is) {
+                LOGGER.warn("未找到配置文件 {}, 将使用默认配置", CONFIG_FILE);
+                return;
+            }
+
+            _props.load(new InputStreamReader(is, StandardCharsets.UTF_8));
+            LOGGER.info("配置文件 {} 加载成功", CONFIG_FILE);
+        } catch (Exception e) {
+            // 记录错误日志
+            LOGGER.error(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 获取字符串配置
+     *
+     * @param key    配置键
+     * @param defVal 默认值
+     * @return 配置值
+     */
+    public static String getString(String key, String defVal) {
+        if (null == key) {
+            return defVal;
+        }
+
+        String val = System.getProperty(key);
+
+        if (null == val) {
+            val = _props.getProperty(key);
+        }
+
+        if (null == val || val.trim().isEmpty()) {
+            return defVal;
+        } else {
+            return val.trim();
+        }
+    }
+
+    /**
+     * 获取整数配置
+     *
+     * @param key    配置键
+     * @param defVal 默认值
+     * @return 配置值
+     */
+    public static int getInt(String key, int defVal) {
+        String val = getString(key, null);
+
+        if (null == val) {
+            return defVal;
+        }
+
+        try {
+            return Integer.parseInt(val);
+        } catch (NumberFormatException e) {
+            LOGGER.error("配置值不是整数, key = {}, val = {}", key, val);
+            return defVal;
+        }
+    }
+
+    /**
+     * 获取长整数配置
+     *
+     * @param key    配置键
+     * @param defVal 默认值
+     * @return 配置值
+     */
+    public static long getLong(String key, long defVal) {
+        String val = getString(key, null);
+
+        if (null == val) {
+            return defVal;
+        }
+
+        try {
+            return Long.parseLong(val);
+        } catch (NumberFormatException e) {
+            LOGGER.error("配置值不是整数, key = {}, val = {}", key, val);
+            return defVal;
+        }
+    }
+
+    /**
+     * 获取布尔配置
+     *
+     * @param key    配置键
+     * @param defVal 默认值
+     * @return 配置值
+     */
+    public static boolean getBoolean(String key, boolean defVal) {
+        String val = getString(key, null);
+
+        if (null == val) {
+            return defVal;
+        } else {
+            return Boolean.parseBoolean(val);
+        }
+    }
+}
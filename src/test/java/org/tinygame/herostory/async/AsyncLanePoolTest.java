@@ -0,0 +1,121 @@
+package org.tinygame.herostory.async;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 异步通道池测试, 主要是工作窃取模式
+ */
+public class AsyncLanePoolTest {
+    /**
+     * 工作窃取模式下, 同一绑定 Id 的操作按提交顺序执行,
+     * 包括一个任务数远超每轮上限的热点绑定 Id
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void stealModeKeepsPerBindIdOrder() throws InterruptedException {
+        final int bindIdCount = 32;
+        final int countPerBindId = 50;
+        final int hotCount = 1000;
+
+        AsyncLanePool pool = new AsyncLanePool("AsyncLanePoolTest-order", "steal", 4, 4096, 4);
+        AtomicIntegerArray lastSeqArray = new AtomicIntegerArray(bindIdCount);
+        AtomicInteger errorCount = new AtomicInteger(0);
+        CountDownLatch doneLatch = new CountDownLatch((bindIdCount - 1) * countPerBindId + hotCount);
+
+        for (int bindId = 0; bindId < bindIdCount; bindId++) {
+            lastSeqArray.set(bindId, -1);
+        }
+
+        for (int seq = 0; seq < hotCount; seq++) {
+            final int currSeq = seq;
+
+            // 绑定 Id 0 是热点
+            assertTrue(pool.execute(0, () -> {
+                if (lastSeqArray.get(0) + 1 != currSeq) {
+                    errorCount.incrementAndGet();
+                }
+
+                lastSeqArray.set(0, currSeq);
+                doneLatch.countDown();
+            }, "hot"));
+
+            if (seq < countPerBindId) {
+                for (int bindId = 1; bindId < bindIdCount; bindId++) {
+                    final int otherBindId = bindId;
+
+                    assertTrue(pool.execute(otherBindId, () -> {
+                        if (lastSeqArray.get(otherBindId) + 1 != currSeq) {
+                            errorCount.incrementAndGet();
+                        }
+
+                        lastSeqArray.set(otherBindId, currSeq);
+                        doneLatch.countDown();
+                    }, "other"));
+                }
+            }
+        }
+
+        assertTrue(doneLatch.await(10, TimeUnit.SECONDS));
+        assertEquals(0, errorCount.get());
+        assertEquals(hotCount - 1, lastSeqArray.get(0));
+
+        for (int bindId = 1; bindId < bindIdCount; bindId++) {
+            assertEquals(countPerBindId - 1, lastSeqArray.get(bindId));
+        }
+    }
+
+    /**
+     * 工作窃取模式下, 一个绑定 Id 阻塞时, 其他绑定 Id 的操作由空闲线程执行
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void stealModeBlockedBindIdDoesNotStallOthers() throws InterruptedException {
+        AsyncLanePool pool = new AsyncLanePool("AsyncLanePoolTest-block", "steal", 2, 1024, 2);
+        CountDownLatch blockLatch = new CountDownLatch(1);
+        CountDownLatch otherLatch = new CountDownLatch(100);
+
+        try {
+            assertTrue(pool.execute(1, () -> {
+                try {
+                    blockLatch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "block"));
+
+            // 阻塞的绑定 Id 后面排着的操作不影响其他绑定 Id
+            assertTrue(pool.execute(1, () -> { }, "queued"));
+
+            for (int i = 0; i < 100; i++) {
+                assertTrue(pool.execute(2 + i, otherLatch::countDown, "other"));
+            }
+
+            assertTrue(otherLatch.await(5, TimeUnit.SECONDS));
+        } finally {
+            blockLatch.countDown();
+        }
+    }
+
+    /**
+     * 工作窃取模式只有一个通道, 不支持调整通道数量
+     */
+    @Test
+    public void stealModeRejectsResize() {
+        AsyncLanePool pool = new AsyncLanePool("AsyncLanePoolTest-resize", "steal", 4, 1024, 0);
+
+        assertEquals(1, pool.getLaneCount());
+        assertFalse(pool.resizeLanes(8));
+        assertEquals(1, pool.getLaneCount());
+    }
+}
@@ -0,0 +1,216 @@
+package org.tinygame.herostory.async;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 异步通道哈希环测试
+ */
+public class AsyncLaneRingTest {
+    /**
+     * 测试用的绑定 Id 数量
+     */
+    private static final int BIND_ID_COUNT = 100000;
+
+    /**
+     * 8 个通道增加到 9 个, 换通道的绑定 Id 只会换到新通道, 数量约为 1 / 9
+     */
+    @Test
+    public void growMovesKeysOnlyToNewLane() {
+        AsyncLane[] laneArray = newLaneArray(9);
+        AsyncLaneRing ring8 = newRing(laneArray, 8);
+        AsyncLaneRing ring9 = newRing(laneArray, 9);
+        int movedCount = 0;
+
+        for (int bindId = 0; bindId < BIND_ID_COUNT; bindId++) {
+            int oldLaneId = indexOf(laneArray, ring8.select(bindId));
+            int newLaneId = indexOf(laneArray, ring9.select(bindId));
+
+            if (oldLaneId != newLaneId) {
+                assertEquals(8, newLaneId);
+                ++movedCount;
+            }
+        }
+
+        double movedRate = (double) movedCount / BIND_ID_COUNT;
+        assertTrue("movedRate = " + movedRate, movedRate > 0.08 && movedRate < 0.15);
+    }
+
+    /**
+     * 9 个通道减少到 8 个, 只有原来在通道 8 上的绑定 Id 换通道
+     */
+    @Test
+    public void shrinkMovesOnlyKeysOfRemovedLane() {
+        AsyncLane[] laneArray = newLaneArray(9);
+        AsyncLaneRing ring9 = newRing(laneArray, 9);
+        AsyncLaneRing ring8 = newRing(laneArray, 8);
+
+        for (int bindId = 0; bindId < BIND_ID_COUNT; bindId++) {
+            int oldLaneId = indexOf(laneArray, ring9.select(bindId));
+            int newLaneId = indexOf(laneArray, ring8.select(bindId));
+
+            if (8 != oldLaneId) {
+                assertEquals(oldLaneId, newLaneId);
+            }
+        }
+    }
+
+    /**
+     * 连续的绑定 Id 均匀分布到各个通道
+     */
+    @Test
+    public void keysSpreadEvenly() {
+        AsyncLane[] laneArray = newLaneArray(8);
+        AsyncLaneRing ring = newRing(laneArray, 8);
+        int[] countArray = new int[8];
+
+        for (int bindId = 0; bindId < BIND_ID_COUNT; bindId++) {
+            ++countArray[indexOf(laneArray, ring.select(bindId))];
+        }
+
+        double avg = (double) BIND_ID_COUNT / countArray.length;
+
+        for (int count : countArray) {
+            assertTrue("count = " + count, count > avg * 0.7 && count < avg * 1.3);
+        }
+    }
+
+    /**
+     * 调整通道数量时, 还有操作在执行的绑定 Id 固定在原来的通道上,
+     * 全部完成后才换到新通道
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void pinnedKeyStaysOnOldLaneDuringResize() throws InterruptedException {
+        // 找一个增加通道后会换到通道 8 的绑定 Id
+        AsyncLane[] laneArray = newLaneArray(9);
+        AsyncLaneRing ring9 = newRing(laneArray, 9);
+        int bindId = 0;
+
+        while (8 != indexOf(laneArray, ring9.select(bindId))) {
+            ++bindId;
+        }
+
+        AsyncLanePool pool = new AsyncLanePool("AsyncLaneRingTest", "platform", 8, 1024, 0);
+        List<String> resultList = new CopyOnWriteArrayList<>();
+        CountDownLatch blockLatch = new CountDownLatch(1);
+        CountDownLatch doneLatch = new CountDownLatch(2);
+
+        try {
+            assertTrue(pool.execute(bindId, () -> {
+                try {
+                    blockLatch.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+
+                resultList.add("1 " + Thread.currentThread().getName());
+                doneLatch.countDown();
+            }, "op1"));
+
+            assertTrue(pool.resizeLanes(9));
+            assertEquals(9, pool.getLaneCount());
+
+            assertTrue(pool.execute(bindId, () -> {
+                resultList.add("2 " + Thread.currentThread().getName());
+                doneLatch.countDown();
+            }, "op2"));
+
+            blockLatch.countDown();
+            assertTrue(doneLatch.await(5, TimeUnit.SECONDS));
+
+            // 两个操作在同一个旧通道上按顺序执行
+            assertEquals(2, resultList.size());
+            String oldThreadName = resultList.get(0).substring(2);
+            assertTrue(resultList.get(0).startsWith("1 "));
+            assertEquals("2 " + oldThreadName, resultList.get(1));
+            assertNotEquals("AsyncLaneRingTest[ 8 ]", oldThreadName);
+
+            // 解除绑定之后, 新操作在新通道上执行
+            long deadline = System.currentTimeMillis() + 5000;
+
+            while (true) {
+                String[] threadName = { null };
+                CountDownLatch probeLatch = new CountDownLatch(1);
+
+                assertTrue(pool.execute(bindId, () -> {
+                    threadName[0] = Thread.currentThread().getName();
+                    probeLatch.countDown();
+                }, "probe"));
+
+                assertTrue(probeLatch.await(5, TimeUnit.SECONDS));
+
+                if ("AsyncLaneRingTest[ 8 ]".equals(threadName[0])) {
+                    break;
+                }
+
+                assertEquals(oldThreadName, threadName[0]);
+
+                if (System.currentTimeMillis() > deadline) {
+                    fail("bindId is still pinned to " + threadName[0]);
+                }
+
+                Thread.sleep(10);
+            }
+        } finally {
+            blockLatch.countDown();
+            pool.resizeLanes(1);
+        }
+    }
+
+    /**
+     * 创建测试用的通道数组, 通道不会执行任务
+     *
+     * @param laneCount 通道数量
+     * @return 通道数组
+     */
+    private static AsyncLane[] newLaneArray(int laneCount) {
+        AsyncLane[] laneArray = new AsyncLane[laneCount];
+
+        for (int i = 0; i < laneCount; i++) {
+            laneArray[i] = new AsyncLane("lane-" + i, 1, (KeySerialExecutor) null);
+        }
+
+        return laneArray;
+    }
+
+    /**
+     * 用通道数组的前若干个通道创建哈希环
+     *
+     * @param laneArray 通道数组
+     * @param laneCount 通道数量
+     * @return 哈希环
+     */
+    private static AsyncLaneRing newRing(AsyncLane[] laneArray, int laneCount) {
+        AsyncLane[] ringLaneArray = new AsyncLane[laneCount];
+        System.arraycopy(laneArray, 0, ringLaneArray, 0, laneCount);
+        return new AsyncLaneRing(ringLaneArray);
+    }
+
+    /**
+     * 获取通道在数组中的下标
+     *
+     * @param laneArray 通道数组
+     * @param lane      通道
+     * @return 下标
+     */
+    private static int indexOf(AsyncLane[] laneArray, AsyncLane lane) {
+        for (int i = 0; i < laneArray.length; i++) {
+            if (laneArray[i] == lane) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,321 @@
+package org.tinygame.herostory.async;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 异步操作处理器测试
+ */
+public class AsyncOperationProcessorTest {
+    /**
+     * 同时调用的数量
+     */
+    private static final int CALLER_COUNT = 8;
+
+    /**
+     * 同一个操作标识的并发调用只执行一次, 所有调用方得到同一个结果
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void concurrentCallersShareOneExecution() throws InterruptedException {
+        AtomicInteger execCount = new AtomicInteger(0);
+        CountDownLatch blockLatch = new CountDownLatch(1);
+        List<CompletableFuture<String>> futureList = new ArrayList<>();
+
+        for (int i = 0; i < CALLER_COUNT; i++) {
+            futureList.add(AsyncOperationProcessor.getInstance().singleFlight("share", i, () -> {
+                execCount.incrementAndGet();
+                await(blockLatch);
+                return "value";
+            }));
+        }
+
+        blockLatch.countDown();
+
+        for (CompletableFuture<String> future : futureList) {
+            assertEquals("value", future.join());
+        }
+
+        assertEquals(1, execCount.get());
+    }
+
+    /**
+     * 执行完成后释放操作标识, 之后的调用重新执行, 不会拿到上一次的结果
+     */
+    @Test
+    public void keyIsReleasedAfterCompletion() {
+        AtomicInteger execCount = new AtomicInteger(0);
+
+        for (int i = 1; i <= 200; i++) {
+            int result = AsyncOperationProcessor.getInstance().singleFlight(
+                "release", 0, execCount::incrementAndGet
+            ).join();
+
+            assertEquals(i, result);
+        }
+    }
+
+    /**
+     * 执行失败时所有调用方一起失败, 之后的调用重新执行
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void failurePropagatesToAllCallers() throws InterruptedException {
+        AtomicInteger execCount = new AtomicInteger(0);
+        CountDownLatch blockLatch = new CountDownLatch(1);
+        List<CompletableFuture<String>> futureList = new ArrayList<>();
+
+        for (int i = 0; i < CALLER_COUNT; i++) {
+            futureList.add(AsyncOperationProcessor.getInstance().singleFlight("failure", i, () -> {
+                execCount.incrementAndGet();
+                await(blockLatch);
+                throw new IllegalStateException("boom");
+            }));
+        }
+
+        blockLatch.countDown();
+
+        for (CompletableFuture<String> future : futureList) {
+            try {
+                future.join();
+                fail("expected failure");
+            } catch (CompletionException ex) {
+                assertTrue(ex.getCause() instanceof IllegalStateException);
+            }
+        }
+
+        assertEquals(1, execCount.get());
+
+        String result = AsyncOperationProcessor.getInstance().singleFlight("failure", 0, () -> {
+            execCount.incrementAndGet();
+            return "retry";
+        }).join();
+
+        assertEquals("retry", result);
+        assertEquals(2, execCount.get());
+    }
+
+    /**
+     * 一个调用方取消自己的 future, 不影响共享的执行和其他调用方
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void cancelDoesNotAffectOtherCallers() throws InterruptedException {
+        CountDownLatch blockLatch = new CountDownLatch(1);
+
+        CompletableFuture<String> future0 = AsyncOperationProcessor.getInstance().singleFlight("cancel", 0, () -> {
+            await(blockLatch);
+            return "value";
+        });
+        CompletableFuture<String> future1 = AsyncOperationProcessor.getInstance().singleFlight("cancel", 1, () -> "other");
+
+        assertTrue(future0.cancel(true));
+        blockLatch.countDown();
+
+        assertEquals("value", future1.join());
+    }
+
+    /**
+     * 绑定 Id 相同的 supplyAsync 按提交顺序执行
+     */
+    @Test
+    public void supplyAsyncKeepsPerBindIdOrder() {
+        List<Integer> resultList = new ArrayList<>();
+        List<CompletableFuture<Integer>> futureList = new ArrayList<>();
+
+        for (int i = 0; i < 100; i++) {
+            final int seq = i;
+
+            futureList.add(AsyncOperationProcessor.getInstance().supplyAsync(1, () -> {
+                // 同一绑定 Id 的操作依次执行, 不需要同步
+                resultList.add(seq);
+                return seq;
+            }));
+        }
+
+        for (int i = 0; i < futureList.size(); i++) {
+            assertEquals(i, (int) futureList.get(i).join());
+        }
+
+        for (int i = 0; i < resultList.size(); i++) {
+            assertEquals(i, (int) resultList.get(i));
+        }
+    }
+
+    /**
+     * 异步操作抛出异常时, future 以该异常完成
+     */
+    @Test
+    public void supplyAsyncFailure() {
+        CompletableFuture<String> future = AsyncOperationProcessor.getInstance().supplyAsync(2, () -> {
+            throw new IllegalStateException("boom");
+        });
+
+        try {
+            future.join();
+            fail("expected failure");
+        } catch (CompletionException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    /**
+     * 排队期间超时的操作不再执行
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void timeoutSkipsQueuedOperation() throws InterruptedException {
+        CountDownLatch blockLatch = new CountDownLatch(1);
+        AtomicBoolean executed = new AtomicBoolean(false);
+
+        CompletableFuture<Void> blockFuture = AsyncOperationProcessor.getInstance().runAsync(
+            3, null, 0, () -> await(blockLatch)
+        );
+        CompletableFuture<Void> queuedFuture = AsyncOperationProcessor.getInstance().runAsync(
+            3, null, 50, () -> executed.set(true)
+        );
+
+        assertTimeout(queuedFuture);
+        blockLatch.countDown();
+        blockFuture.join();
+
+        // 同一绑定 Id 的下一个操作执行完, 说明排在前面的操作已经处理过了
+        AsyncOperationProcessor.getInstance().runAsync(3, () -> { }).join();
+        assertFalse(executed.get());
+    }
+
+    /**
+     * 执行期间超时的操作被中断, 通道让给后面的操作
+     */
+    @Test
+    public void timeoutInterruptsRunningOperation() {
+        AtomicBoolean interrupted = new AtomicBoolean(false);
+
+        CompletableFuture<Void> future = AsyncOperationProcessor.getInstance().runAsync(4, null, 50, () -> {
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException ex) {
+                interrupted.set(true);
+            }
+        });
+
+        assertTimeout(future);
+
+        long startTime = System.currentTimeMillis();
+        AsyncOperationProcessor.getInstance().runAsync(4, () -> { }).join();
+
+        assertTrue(interrupted.get());
+        assertTrue(System.currentTimeMillis() - startTime < 2000);
+    }
+
+    /**
+     * 旧接口的操作超时后, 要等 doAsync 返回才回到主线程执行失败逻辑
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void legacyFailWaitsForDoAsync() throws InterruptedException {
+        CountDownLatch failLatch = new CountDownLatch(1);
+        boolean[] seenInFail = { false };
+        Throwable[] failCause = { null };
+
+        AsyncOperationProcessor.getInstance().process(new IAsyncOperation() {
+            /**
+             * doAsync 是否已经写完
+             */
+            private boolean _written = false;
+
+            @Override
+            public int getBindId() {
+                return 5;
+            }
+
+            @Override
+            public long getTimeoutMillis() {
+                return 50;
+            }
+
+            @Override
+            public void doAsync() {
+                // 不响应中断的阻塞调用, 例如 JDBC 读
+                long endTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+
+                while (System.nanoTime() < endTime) {
+                    Thread.yield();
+                }
+
+                _written = true;
+            }
+
+            @Override
+            public void doFail(Throwable cause) {
+                seenInFail[0] = _written;
+                failCause[0] = cause;
+                failLatch.countDown();
+            }
+        });
+
+        assertTrue(failLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(failCause[0] instanceof TimeoutException);
+        assertTrue(seenInFail[0]);
+    }
+
+    /**
+     * AsyncTimeout 到时间后以 TimeoutException 完成, 已完成的 future 不受影响
+     */
+    @Test
+    public void orTimeout() {
+        CompletableFuture<String> pendingFuture = new CompletableFuture<>();
+        AsyncTimeout.orTimeout(pendingFuture, 20, TimeUnit.MILLISECONDS);
+        assertTimeout(pendingFuture);
+
+        CompletableFuture<String> doneFuture = CompletableFuture.completedFuture("value");
+        AsyncTimeout.orTimeout(doneFuture, 1, TimeUnit.MILLISECONDS);
+        assertEquals("value", doneFuture.join());
+    }
+
+    /**
+     * 断言 future 以 TimeoutException 完成
+     *
+     * @param future future
+     */
+    private static void assertTimeout(CompletableFuture<?> future) {
+        try {
+            future.join();
+            fail("expected timeout");
+        } catch (CompletionException ex) {
+            assertTrue(ex.getCause() instanceof TimeoutException);
+        }
+    }
+
+    /**
+     * 等待闩锁, 最多 5 秒
+     *
+     * @param latch 闩锁
+     */
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.tinygame.herostory.async;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 熔断器测试
+ */
+public class CircuitBreakerTest {
+    /**
+     * 打开持续时间 ( 毫秒 )
+     */
+    private static final long OPEN_MILLIS = 50;
+
+    /**
+     * 连续失败达到阈值后打开, 中间有一次成功就重新计数
+     */
+    @Test
+    public void closedToOpenAfterThreshold() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 3, OPEN_MILLIS);
+
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onFailure();
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.STATE_CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.STATE_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+    }
+
+    /**
+     * 打开时间到了之后半开, 只放行一个试探操作, 成功则关闭
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void halfOpenTrialSuccessCloses() throws InterruptedException {
+        CircuitBreaker breaker = newOpenBreaker();
+
+        Thread.sleep(OPEN_MILLIS * 2);
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.STATE_CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertTrue(breaker.allowRequest());
+    }
+
+    /**
+     * 试探操作失败则再次打开, 打开时间重新计算
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void halfOpenTrialFailureReopens() throws InterruptedException {
+        CircuitBreaker breaker = newOpenBreaker();
+
+        Thread.sleep(OPEN_MILLIS * 2);
+        assertTrue(breaker.allowRequest());
+
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.STATE_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        Thread.sleep(OPEN_MILLIS * 2);
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, breaker.getState());
+    }
+
+    /**
+     * 试探操作被拒绝或取消时不计结果, 只释放试探名额
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void ignoredTrialReleasesSlot() throws InterruptedException {
+        CircuitBreaker breaker = newOpenBreaker();
+
+        Thread.sleep(OPEN_MILLIS * 2);
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+
+        breaker.onIgnore();
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    /**
+     * 打开之前已经放行的操作在打开后失败, 不延长打开时间
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void lateFailureDoesNotExtendOpen() throws InterruptedException {
+        CircuitBreaker breaker = newOpenBreaker();
+
+        Thread.sleep(OPEN_MILLIS / 2);
+        breaker.onFailure();
+
+        Thread.sleep(OPEN_MILLIS);
+        assertTrue(breaker.allowRequest());
+    }
+
+    /**
+     * 创建已打开的熔断器
+     *
+     * @return 熔断器
+     */
+    private static CircuitBreaker newOpenBreaker() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 3, OPEN_MILLIS);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(breaker.allowRequest());
+            breaker.onFailure();
+        }
+
+        assertEquals(CircuitBreaker.STATE_OPEN, breaker.getState());
+        return breaker;
+    }
+}
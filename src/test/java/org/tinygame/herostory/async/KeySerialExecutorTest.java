@@ -0,0 +1,148 @@
+package org.tinygame.herostory.async;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 按键串行执行器测试
+ */
+public class KeySerialExecutorTest {
+    /**
+     * 底层是多线程线程池, 每个键的任务数远超每轮上限,
+     * 执行者多次让出线程后, 同一个键的任务仍然按提交顺序逐个执行
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void perKeyOrderAcrossHandOff() throws InterruptedException {
+        final int keyCount = 8;
+        final int countPerKey = 200;
+
+        ExecutorService es = Executors.newFixedThreadPool(4);
+        AtomicInteger submitCount = new AtomicInteger(0);
+
+        KeySerialExecutor executor = new KeySerialExecutor((r) -> {
+            submitCount.incrementAndGet();
+            es.execute(r);
+        });
+
+        // 每个键上一次执行的序号, 以及正在执行的任务数量
+        AtomicIntegerArray lastSeqArray = new AtomicIntegerArray(keyCount);
+        AtomicIntegerArray runningArray = new AtomicIntegerArray(keyCount);
+        AtomicInteger errorCount = new AtomicInteger(0);
+        CountDownLatch doneLatch = new CountDownLatch(keyCount * countPerKey);
+
+        for (int key = 0; key < keyCount; key++) {
+            lastSeqArray.set(key, -1);
+        }
+
+        for (int seq = 0; seq < countPerKey; seq++) {
+            for (int key = 0; key < keyCount; key++) {
+                final int currKey = key;
+                final int currSeq = seq;
+
+                executor.execute(currKey, () -> {
+                    if (1 != runningArray.incrementAndGet(currKey) ||
+                        lastSeqArray.get(currKey) + 1 != currSeq) {
+                        errorCount.incrementAndGet();
+                    }
+
+                    lastSeqArray.set(currKey, currSeq);
+                    runningArray.decrementAndGet(currKey);
+                    doneLatch.countDown();
+                });
+            }
+        }
+
+        assertTrue(doneLatch.await(10, TimeUnit.SECONDS));
+        es.shutdown();
+
+        assertEquals(0, errorCount.get());
+
+        for (int key = 0; key < keyCount; key++) {
+            assertEquals(countPerKey - 1, lastSeqArray.get(key));
+        }
+
+        // 至少发生过一次让出
+        assertTrue(submitCount.get() > keyCount);
+    }
+
+    /**
+     * 热点键执行 16 个任务后让出线程, 排在后面的其他键可以先执行
+     */
+    @Test
+    public void hotKeyYieldsAfterMaxRunPerTurn() {
+        // 手动驱动的底层执行器
+        Queue<Runnable> runnerQueue = new ArrayDeque<>();
+        KeySerialExecutor executor = new KeySerialExecutor(runnerQueue::offer);
+        List<String> resultList = new ArrayList<>();
+
+        for (int i = 0; i < 40; i++) {
+            final int seq = i;
+            executor.execute(1, () -> resultList.add("1-" + seq));
+        }
+
+        executor.execute(2, () -> resultList.add("2-0"));
+        assertEquals(2, runnerQueue.size());
+
+        // 键 1 的第一轮
+        runnerQueue.poll().run();
+        assertEquals(16, resultList.size());
+        assertEquals("1-15", resultList.get(15));
+
+        // 键 2, 然后是键 1 让出后重新排队的执行者
+        runnerQueue.poll().run();
+        assertEquals("2-0", resultList.get(16));
+
+        while (!runnerQueue.isEmpty()) {
+            runnerQueue.poll().run();
+        }
+
+        assertEquals(41, resultList.size());
+
+        for (int i = 0; i < 40; i++) {
+            assertEquals("1-" + i, resultList.get((i < 16) ? i : i + 1));
+        }
+    }
+
+    /**
+     * 任务抛出错误, 同一个键的后续任务照常执行
+     */
+    @Test
+    public void errorDoesNotStallKey() {
+        Queue<Runnable> runnerQueue = new ArrayDeque<>();
+        KeySerialExecutor executor = new KeySerialExecutor(runnerQueue::offer);
+        List<Integer> resultList = new ArrayList<>();
+
+        executor.execute(1, () -> {
+            throw new StackOverflowError();
+        });
+        executor.execute(1, () -> resultList.add(1));
+
+        while (!runnerQueue.isEmpty()) {
+            runnerQueue.poll().run();
+        }
+
+        assertEquals(Collections.singletonList(1), resultList);
+
+        // 队列已经移除, 新任务会启动新的执行者
+        executor.execute(1, () -> resultList.add(2));
+        assertEquals(1, runnerQueue.size());
+        runnerQueue.poll().run();
+        assertEquals(2, resultList.size());
+    }
+}
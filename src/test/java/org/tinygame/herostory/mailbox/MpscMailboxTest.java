@@ -0,0 +1,235 @@
+package org.tinygame.herostory.mailbox;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+import org.tinygame.herostory.cmdhandler.ICmdHandler;
+import org.tinygame.herostory.msg.GameMsgProtocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 多生产者单消费者邮箱测试
+ */
+public class MpscMailboxTest {
+    /**
+     * 命令对象, 内容不重要
+     */
+    private static final GameMsgProtocol.WhoElseIsHereCmd CMD = GameMsgProtocol.WhoElseIsHereCmd.getDefaultInstance();
+
+    /**
+     * 投递和处理的总数远超容量, 槽位循环使用后顺序不变
+     */
+    @Test
+    public void wraparound() {
+        MpscMailbox mailbox = new MpscMailbox(4, new BlockingWaitStrategy());
+        ChannelHandlerContext ctx = newCtx();
+        List<Integer> resultList = new ArrayList<>();
+
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < 3; i++) {
+                final int seq = round * 3 + i;
+                assertTrue(mailbox.offer(newCmdHandler(resultList, seq), ctx, CMD, 0, 0));
+            }
+
+            assertEquals(3, mailbox.pendingCount());
+            assertEquals(3, mailbox.drain(0));
+            assertFalse(mailbox.hasMail());
+        }
+
+        assertEquals(300, resultList.size());
+
+        for (int i = 0; i < resultList.size(); i++) {
+            assertEquals(i, (int) resultList.get(i));
+        }
+    }
+
+    /**
+     * 容量会向上取整为 2 的幂
+     */
+    @Test
+    public void capacityRoundsUpToPowerOfTwo() {
+        MpscMailbox mailbox = new MpscMailbox(5, new BlockingWaitStrategy());
+        ChannelHandlerContext ctx = newCtx();
+        List<Integer> resultList = new ArrayList<>();
+
+        for (int i = 0; i < 8; i++) {
+            assertTrue(mailbox.offer(newCmdHandler(resultList, i), ctx, CMD, 0, 0));
+        }
+
+        assertFalse(mailbox.offer(newCmdHandler(resultList, 8), ctx, CMD, 0, 0));
+    }
+
+    /**
+     * 邮箱已满时命令投递失败, 腾出槽位后可以继续投递
+     */
+    @Test
+    public void fullRingRejectsCmd() {
+        MpscMailbox mailbox = new MpscMailbox(4, new BlockingWaitStrategy());
+        ChannelHandlerContext ctx = newCtx();
+        List<Integer> resultList = new ArrayList<>();
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(mailbox.offer(newCmdHandler(resultList, i), ctx, CMD, 0, 0));
+        }
+
+        assertFalse(mailbox.offer(newCmdHandler(resultList, 99), ctx, CMD, 0, 0));
+        assertEquals(4, mailbox.pendingCount());
+
+        assertEquals(1, mailbox.drain(1));
+        assertTrue(mailbox.offer(newCmdHandler(resultList, 4), ctx, CMD, 0, 0));
+        assertEquals(4, mailbox.drain(0));
+
+        assertEquals(5, resultList.size());
+
+        for (int i = 0; i < resultList.size(); i++) {
+            assertEquals(i, (int) resultList.get(i));
+        }
+    }
+
+    /**
+     * 邮箱已满时 Runnable 放入溢出队列, 不会丢弃, 顺序不变;
+     * 溢出队列还有积压时, 后来的 Runnable 也要排在后面
+     */
+    @Test
+    public void fullRingOverflowsRunnable() {
+        MpscMailbox mailbox = new MpscMailbox(4, new BlockingWaitStrategy());
+        List<Integer> resultList = new ArrayList<>();
+
+        for (int i = 0; i < 10; i++) {
+            final int seq = i;
+            mailbox.offer(() -> resultList.add(seq));
+        }
+
+        assertEquals(10, mailbox.pendingCount());
+
+        // 处理一部分之后环形缓冲区有空位, 但溢出队列还没处理完
+        assertEquals(5, mailbox.drain(5));
+        mailbox.offer(() -> resultList.add(10));
+        assertEquals(6, mailbox.drain(0));
+        assertFalse(mailbox.hasMail());
+
+        assertEquals(11, resultList.size());
+
+        for (int i = 0; i < resultList.size(); i++) {
+            assertEquals(i, (int) resultList.get(i));
+        }
+    }
+
+    /**
+     * 处理消息时抛出错误, 不影响后续消息
+     */
+    @Test
+    public void drainSurvivesError() {
+        MpscMailbox mailbox = new MpscMailbox(4, new BlockingWaitStrategy());
+        List<Integer> resultList = new ArrayList<>();
+
+        mailbox.offer(() -> {
+            throw new StackOverflowError();
+        });
+        mailbox.offer(() -> resultList.add(1));
+
+        assertEquals(2, mailbox.drain(0));
+        assertEquals(Collections.singletonList(1), resultList);
+    }
+
+    /**
+     * 多个生产者同时投递, 容量很小, 经常溢出,
+     * 每个生产者投递的消息都被处理, 并且保持该生产者的投递顺序
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void multipleProducers() throws InterruptedException {
+        final int producerCount = 4;
+        final int countPerProducer = 20000;
+
+        MpscMailbox mailbox = new MpscMailbox(64, new BlockingWaitStrategy());
+        // 只由消费者线程访问
+        int[] lastSeqArray = new int[producerCount];
+        int[] errorCount = new int[1];
+        CountDownLatch doneLatch = new CountDownLatch(producerCount * countPerProducer);
+
+        for (int i = 0; i < producerCount; i++) {
+            lastSeqArray[i] = -1;
+        }
+
+        Thread consumer = mailbox.start("MpscMailboxTest");
+        List<Thread> producerList = new ArrayList<>();
+
+        for (int i = 0; i < producerCount; i++) {
+            final int producerId = i;
+
+            Thread producer = new Thread(() -> {
+                for (int seq = 0; seq < countPerProducer; seq++) {
+                    final int currSeq = seq;
+
+                    mailbox.offer(() -> {
+                        if (lastSeqArray[producerId] + 1 != currSeq) {
+                            ++errorCount[0];
+                        }
+
+                        lastSeqArray[producerId] = currSeq;
+                        doneLatch.countDown();
+                    });
+                }
+            });
+
+            producerList.add(producer);
+            producer.start();
+        }
+
+        for (Thread producer : producerList) {
+            producer.join();
+        }
+
+        assertTrue(doneLatch.await(10, TimeUnit.SECONDS));
+
+        // 最后投递一个 Runnable 取回结果, 保证消费者线程的写入可见
+        CountDownLatch checkLatch = new CountDownLatch(1);
+        int[] snapshot = new int[producerCount + 1];
+        mailbox.offer(() -> {
+            System.arraycopy(lastSeqArray, 0, snapshot, 0, producerCount);
+            snapshot[producerCount] = errorCount[0];
+            checkLatch.countDown();
+        });
+
+        assertTrue(checkLatch.await(10, TimeUnit.SECONDS));
+        consumer.interrupt();
+
+        for (int i = 0; i < producerCount; i++) {
+            assertEquals(countPerProducer - 1, snapshot[i]);
+        }
+
+        assertEquals(0, snapshot[producerCount]);
+    }
+
+    /**
+     * 创建客户端信道上下文
+     *
+     * @return 信道上下文
+     */
+    private static ChannelHandlerContext newCtx() {
+        return new EmbeddedChannel(new ChannelInboundHandlerAdapter()).pipeline().firstContext();
+    }
+
+    /**
+     * 创建命令处理器, 处理时记录序号
+     *
+     * @param resultList 结果列表
+     * @param seq        序号
+     * @return 命令处理器
+     */
+    private static ICmdHandler<GameMsgProtocol.WhoElseIsHereCmd> newCmdHandler(List<Integer> resultList, int seq) {
+        return (ctx, cmd) -> resultList.add(seq);
+    }
+}